@@ -6,9 +6,12 @@ import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.util.Scanner;
 
+import filesystem.DirectoryEntry;
 import filesystem.FileSystemCore;
 
 public class Shell {
+	private static final int DIRECTORY_PAGE_LENGTH = 16;
+
 	private Shell() {
 	}
 	
@@ -84,6 +87,24 @@ public class Shell {
 					feedback.append(filename);
 					feedback.append(" created");
 				}
+			} else if ("md".equals(command)) {
+				String path = null;
+				if (analyzer.hasNext()) {
+					path = analyzer.next();
+				} else {
+					isSuccess = false;
+				}
+				
+				if (isSuccess && analyzer.hasNext()) {
+					isSuccess = false;
+				}
+				
+				if (isSuccess) {
+					isSuccess = fileSystem.mkdir(path);
+					
+					feedback.append(path);
+					feedback.append(" created");
+				}
 			} else if ("de".equals(command)) {
 				String filename = null;
 				if (analyzer.hasNext()) {
@@ -115,7 +136,7 @@ public class Shell {
 				
 				if (isSuccess) {
 					int index = fileSystem.open(filename);
-					isSuccess = index >= 0 && index <= FileSystemCore.OFT_SIZE;
+					isSuccess = index >= 0 && index < FileSystemCore.MAX_OFT_SIZE;
 					
 					feedback.append(filename);
 					feedback.append(" opened ");
@@ -222,28 +243,66 @@ public class Shell {
 					feedback.append("position is ");
 					feedback.append(pos);
 				}
+			} else if ("pa".equals(command)) {
+				int index = FileSystemCore.ERROR_INDEX;
+				int length = FileSystemCore.ERROR_INDEX;
+				
+				if (analyzer.hasNextInt()) {
+					index = analyzer.nextInt();
+				} else {
+					isSuccess = false;
+				}
+				if (isSuccess && analyzer.hasNextInt()) {
+					length = analyzer.nextInt();
+				} else {
+					isSuccess = false;
+				}
+				if (isSuccess && analyzer.hasNext()) {
+					isSuccess = false;
+				}
+				
+				if (isSuccess) {
+					isSuccess = fileSystem.preallocate(index, length);
+					feedback.append(length);
+					feedback.append(" bytes preallocated");
+				}
 			} else if ("dr".equals(command)) {
+				String path = null;
+				if (analyzer.hasNext()) {
+					path = analyzer.next();
+				}
 				if (analyzer.hasNext()) {
 					isSuccess = false;
 				}
 				
 				if (isSuccess) {
-					String[] directories = fileSystem.directory();
-					if (directories != null) {
-						isSuccess = true;
-						for (int i = 0; i < directories.length; i++) {
-							feedback.append(directories[i]);
+					if (path == null) {
+						path = "/";
+					}
+					
+					DirectoryEntry[] entries = new DirectoryEntry[DIRECTORY_PAGE_LENGTH];
+					int cursor = 0;
+					int count = fileSystem.listDirectory(path, cursor, entries);
+					while (count > 0) {
+						for (int i = 0; i < count; i++) {
+							feedback.append(entries[i].getName());
 							feedback.append(" ");
 						}
-					} else {
-						isSuccess = false;
+						cursor = entries[count - 1].getNextCursor();
+						count = fileSystem.listDirectory(path, cursor, entries);
 					}
+					isSuccess = count == 0;
 				}
 				
 			} else if ("in".equals(command)) {
 				String filename = null;
 				String msg = null;
-				if (analyzer.hasNext()) {
+				int[] geometry = null;
+				if (analyzer.hasNextInt()) {
+					geometry = readGeometry(analyzer);
+					isSuccess = geometry != null;
+					msg = "disk initialized";
+				} else if (analyzer.hasNext()) {
 					filename = analyzer.next();
 					msg = "disk restored";
 				} else {
@@ -255,10 +314,41 @@ public class Shell {
 					isSuccess = false;
 				}
 				
-				if (isSuccess) {
+				if (isSuccess && geometry != null) {
+					isSuccess = fileSystem.init(geometry[0], geometry[1], geometry[2]);
+					feedback.append(msg);
+				} else if (isSuccess) {
 					isSuccess = fileSystem.init(filename);
 					feedback.append(msg);
 				}
+			} else if ("mo".equals(command)) {
+				String filename = null;
+				int[] geometry = null;
+				
+				if (analyzer.hasNext()) {
+					filename = analyzer.next();
+				} else {
+					isSuccess = false;
+				}
+				
+				if (isSuccess && analyzer.hasNextInt()) {
+					geometry = readGeometry(analyzer);
+					isSuccess = geometry != null;
+				}
+				
+				if (analyzer.hasNext()) {
+					isSuccess = false;
+				}
+				
+				if (isSuccess && geometry != null) {
+					isSuccess = fileSystem.mount(filename, geometry[0], geometry[1], geometry[2]);
+					
+					feedback.append("disk mounted");
+				} else if (isSuccess) {
+					isSuccess = fileSystem.mount(filename);
+					
+					feedback.append("disk mounted");
+				}
 			} else if ("sv".equals(command)) {
 				String filename = null;
 				
@@ -290,6 +380,22 @@ public class Shell {
 		}
 	}
 	
+	/**
+	 * Reads a "blockLength blocksTotalNumber descriptorNumber" geometry.
+	 * @param analyzer
+	 * @return null if the three numbers are not there
+	 */
+	private int[] readGeometry(Scanner analyzer) {
+		int[] geometry = new int[3];
+		for (int i = 0; i < geometry.length; i++) {
+			if (!analyzer.hasNextInt()) {
+				return null;
+			}
+			geometry[i] = analyzer.nextInt();
+		}
+		return geometry;
+	}
+	
 	public static void main(String[] args) {
 		Shell shell = new Shell();
 		shell.execute(args);
@@ -0,0 +1,225 @@
+package filesystem;
+
+import java.util.Arrays;
+
+import iosystem.BlockCache;
+import iosystem.LDiskOutOfBoundaryException;
+
+/**
+ * Decoded copy of the free-space bitmap. Bits are kept in longs so a free
+ * block is found a word at a time, starting from where the last block was
+ * handed out. Changes stay in memory until store() writes the bitmap blocks
+ * that hold them.
+ * 
+ * On disk, block i is bit (7 - i % 8) of byte i / 8 of the bitmap area.
+ */
+class BlockBitmap {
+	private static final int BITS_PER_WORD = 64;
+	private static final int BYTE_MASK = 0xff;
+	private static final int BYTES_PER_WORD = BITS_PER_WORD / PackableMemory.BIT_PER_BYTE;
+	
+	private long[] _words = null;
+	private boolean[] _isBlockDirty = null;
+	
+	private int _blocksTotalNumber;
+	private int _bitmapStart;
+	private int _wordsPerBlock;
+	private int _searchHint;
+	private int _freeBlocksNumber;
+	
+	public BlockBitmap(int blocksTotalNumber, int blockLength, int bitmapStart, int bitmapBlocks) {
+		_blocksTotalNumber = blocksTotalNumber;
+		_bitmapStart = bitmapStart;
+		_wordsPerBlock = blockLength / BYTES_PER_WORD;
+		
+		_words = new long[bitmapBlocks * _wordsPerBlock];
+		_isBlockDirty = new boolean[bitmapBlocks];
+		_searchHint = 0;
+		_freeBlocksNumber = blocksTotalNumber;
+	}
+	
+	/**
+	 * @return the allocated block, or FileSystemCore.ERROR_INDEX if the disk is full
+	 */
+	public int allocate() {
+		if (_freeBlocksNumber <= 0) {
+			return FileSystemCore.ERROR_INDEX;
+		}
+		
+		for (int i = 0; i < _words.length; i++) {
+			int word = (_searchHint + i) % _words.length;
+			long free = ~_words[word];
+			if (free == 0) {
+				continue;
+			}
+			
+			int blockIndex = word * BITS_PER_WORD + Long.numberOfTrailingZeros(free);
+			if (blockIndex >= _blocksTotalNumber) {
+				continue;
+			}
+			
+			set(blockIndex);
+			_searchHint = word;
+			return blockIndex;
+		}
+		return FileSystemCore.ERROR_INDEX;
+	}
+	
+	/**
+	 * Allocates goal when it is free, so a file growing block by block stays
+	 * contiguous, and any free block otherwise.
+	 * @param goal
+	 * @return the allocated block, or FileSystemCore.ERROR_INDEX if the disk is full
+	 */
+	public int allocate(int goal) {
+		if (goal >= 0 && goal < _blocksTotalNumber && !isUsed(goal)) {
+			set(goal);
+			return goal;
+		}
+		return allocate();
+	}
+	
+	/**
+	 * Finds a run of length free blocks, looking from goal to the end of the
+	 * disk first and then from the start. Nothing is allocated.
+	 * @param length
+	 * @param goal
+	 * @return the first block of the run, or FileSystemCore.ERROR_INDEX if there is none
+	 */
+	public int findRun(int length, int goal) {
+		if (length <= 0 || length > _freeBlocksNumber) {
+			return FileSystemCore.ERROR_INDEX;
+		}
+		if (goal < 0 || goal >= _blocksTotalNumber) {
+			goal = 0;
+		}
+		
+		int start = findRun(length, goal, _blocksTotalNumber);
+		if (start == FileSystemCore.ERROR_INDEX && goal > 0) {
+			start = findRun(length, 0, Math.min(goal + length - 1, _blocksTotalNumber));
+		}
+		return start;
+	}
+	
+	public void setRun(int start, int length) {
+		for (int i = start; i < start + length; i++) {
+			set(i);
+		}
+	}
+	
+	public boolean isUsed(int blockIndex) {
+		return (_words[blockIndex / BITS_PER_WORD] & (1L << blockIndex)) != 0;
+	}
+	
+	public void set(int blockIndex) {
+		if (isUsed(blockIndex)) {
+			return;
+		}
+		_words[blockIndex / BITS_PER_WORD] |= 1L << blockIndex;
+		_isBlockDirty[blockIndex / BITS_PER_WORD / _wordsPerBlock] = true;
+		_freeBlocksNumber--;
+	}
+	
+	public void free(int blockIndex) {
+		if (!isUsed(blockIndex)) {
+			return;
+		}
+		_words[blockIndex / BITS_PER_WORD] &= ~(1L << blockIndex);
+		_isBlockDirty[blockIndex / BITS_PER_WORD / _wordsPerBlock] = true;
+		_freeBlocksNumber++;
+	}
+	
+	private int findRun(int length, int from, int end) {
+		while (from < end) {
+			int start = nextFree(from, end);
+			if (start >= end) {
+				break;
+			}
+			int runEnd = nextUsed(start, end);
+			if (runEnd - start >= length) {
+				return start;
+			}
+			from = runEnd;
+		}
+		return FileSystemCore.ERROR_INDEX;
+	}
+	
+	private int nextFree(int from, int end) {
+		int word = from / BITS_PER_WORD;
+		long free = ~_words[word] & (-1L << from);
+		while (free == 0) {
+			word++;
+			if (word * BITS_PER_WORD >= end) {
+				return end;
+			}
+			free = ~_words[word];
+		}
+		return Math.min(word * BITS_PER_WORD + Long.numberOfTrailingZeros(free), end);
+	}
+	
+	private int nextUsed(int from, int end) {
+		int word = from / BITS_PER_WORD;
+		long used = _words[word] & (-1L << from);
+		while (used == 0) {
+			word++;
+			if (word * BITS_PER_WORD >= end) {
+				return end;
+			}
+			used = _words[word];
+		}
+		return Math.min(word * BITS_PER_WORD + Long.numberOfTrailingZeros(used), end);
+	}
+	
+	public int getFreeBlocksNumber() {
+		return _freeBlocksNumber;
+	}
+	
+	public void load(BlockCache cache, byte[] block) throws LDiskOutOfBoundaryException {
+		Arrays.fill(_words, 0);
+		_freeBlocksNumber = _blocksTotalNumber;
+		
+		for (int i = 0; i < _isBlockDirty.length; i++) {
+			cache.read_block(_bitmapStart + i, block, 0);
+			
+			int wordStart = i * _wordsPerBlock;
+			for (int j = 0; j < block.length; j++) {
+				long bits = Integer.reverse(block[j] & BYTE_MASK) >>> (Integer.SIZE - PackableMemory.BIT_PER_BYTE);
+				_words[wordStart + j / BYTES_PER_WORD] |= bits << (j % BYTES_PER_WORD * PackableMemory.BIT_PER_BYTE);
+			}
+			_isBlockDirty[i] = false;
+		}
+		
+		for (int i = 0; i < _words.length; i++) {
+			_freeBlocksNumber -= Long.bitCount(_words[i]);
+		}
+		_searchHint = 0;
+	}
+	
+	/**
+	 * Writes back the bitmap blocks changed since the last load or store.
+	 * @param cache
+	 * @param block scratch block
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	public void store(BlockCache cache, byte[] block) throws LDiskOutOfBoundaryException {
+		for (int i = 0; i < _isBlockDirty.length; i++) {
+			if (!_isBlockDirty[i]) {
+				continue;
+			}
+			
+			int wordStart = i * _wordsPerBlock;
+			for (int j = 0; j < block.length; j++) {
+				int bits = (int) (_words[wordStart + j / BYTES_PER_WORD] >>> 
+								  (j % BYTES_PER_WORD * PackableMemory.BIT_PER_BYTE)) & BYTE_MASK;
+				block[j] = (byte) (Integer.reverse(bits) >>> (Integer.SIZE - PackableMemory.BIT_PER_BYTE));
+			}
+			
+			cache.write_block(_bitmapStart + i, block, 0);
+			_isBlockDirty[i] = false;
+		}
+	}
+	
+	public void markAllDirty() {
+		Arrays.fill(_isBlockDirty, true);
+	}
+}
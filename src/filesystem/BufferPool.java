@@ -0,0 +1,50 @@
+package filesystem;
+
+import java.util.Arrays;
+
+/**
+ * Free block-sized buffers for the rows of the open file table. A row takes
+ * a buffer when a file is opened in it and gives it back on close, and a
+ * full block held back for writing takes one until it is written. Rows not
+ * in use hold no buffer and opening a file again allocates nothing.
+ */
+class BufferPool {
+	private static final int INITIAL_CAPACITY = 8;
+	
+	private byte[][] _buffers = null;
+	private int _buffersNumber;
+	private int _bufferLength;
+	
+	public BufferPool(int bufferLength) {
+		_bufferLength = bufferLength;
+		_buffers = new byte[INITIAL_CAPACITY][];
+		_buffersNumber = 0;
+	}
+	
+	public int getBufferLength() {
+		return _bufferLength;
+	}
+	
+	/**
+	 * @return a buffer of getBufferLength() bytes, holding whatever it held
+	 * when it was released
+	 */
+	public byte[] acquire() {
+		if (_buffersNumber == 0) {
+			return new byte[_bufferLength];
+		}
+		
+		byte[] buffer = _buffers[--_buffersNumber];
+		_buffers[_buffersNumber] = null;
+		return buffer;
+	}
+	
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != _bufferLength) {
+			return;
+		} else if (_buffersNumber == _buffers.length) {
+			_buffers = Arrays.copyOf(_buffers, _buffers.length * 2);
+		}
+		_buffers[_buffersNumber++] = buffer;
+	}
+}
@@ -0,0 +1,69 @@
+package filesystem;
+
+import java.util.Arrays;
+
+/**
+ * Recently resolved path components: the descriptor a name stands for in a
+ * directory, or FileSystemCore.ERROR_INDEX when the directory is known not
+ * to hold the name. Each directory and name pair maps to one slot by its
+ * hash, so the cache never grows and a new entry replaces whatever held the
+ * slot before.
+ */
+class DentryCache {
+	public static final int NOT_CACHED = -2;
+	
+	private static final long NO_KEY = -1L;
+	private static final long LOW_INTEGER_MASK = 0xffffffffL;
+	
+	private long[] _keys = null;
+	private int[] _descriptorIndexes = null;
+	private int _mask;
+	
+	public DentryCache(int capacity) {
+		int slotNumber = 1;
+		while (slotNumber < capacity) {
+			slotNumber *= 2;
+		}
+		
+		_keys = new long[slotNumber];
+		_descriptorIndexes = new int[slotNumber];
+		_mask = slotNumber - 1;
+		clear();
+	}
+	
+	/**
+	 * @param directoryIndex
+	 * @param packedName
+	 * @return the descriptor, ERROR_INDEX for a name known to be missing,
+	 * or NOT_CACHED
+	 */
+	public int get(int directoryIndex, int packedName) {
+		long key = getKey(directoryIndex, packedName);
+		int slot = getSlot(key);
+		if (_keys[slot] != key) {
+			return NOT_CACHED;
+		}
+		return _descriptorIndexes[slot];
+	}
+	
+	public void put(int directoryIndex, int packedName, int descriptorIndex) {
+		long key = getKey(directoryIndex, packedName);
+		int slot = getSlot(key);
+		_keys[slot] = key;
+		_descriptorIndexes[slot] = descriptorIndex;
+	}
+	
+	public void clear() {
+		Arrays.fill(_keys, NO_KEY);
+	}
+	
+	//descriptor indexes are never negative, so no key is NO_KEY
+	private long getKey(int directoryIndex, int packedName) {
+		return (long) directoryIndex << Integer.SIZE | (packedName & LOW_INTEGER_MASK);
+	}
+	
+	private int getSlot(long key) {
+		long hash = key * 0x9e3779b97f4a7c15L;
+		return (int) (hash >>> Integer.SIZE) & _mask;
+	}
+}
@@ -0,0 +1,279 @@
+package filesystem;
+
+import java.util.Arrays;
+
+import iosystem.BlockCache;
+import iosystem.LDiskOutOfBoundaryException;
+
+/**
+ * Decoded copy of the descriptor blocks. File lengths and block pointers are
+ * kept in flat arrays so descriptor lookups never touch a block. Changes
+ * stay in memory until store() writes the descriptor blocks that hold them.
+ * 
+ * A descriptor is eight ints: the 64-bit length (high int first), three
+ * direct pointers, a single-indirect pointer, a double-indirect pointer and
+ * a flags int. Index blocks hold block pointers the same way. A file of at
+ * most INLINE_LENGTH bytes can keep its data in the pointer ints instead,
+ * which the inline flag marks. The directory flag marks a descriptor that
+ * holds a directory rather than a file.
+ *
+ * A descriptor is free when its length and first pointer are both 1, and a
+ * pointer of 1 means no block. Free file descriptors are also kept on a stack,
+ * rebuilt whenever the table is loaded, so allocate() does not scan.
+ */
+class DescriptorTable {
+	public static final int DIRECT_POINTER_NUMBER = 3;
+	public static final int INDIRECT_POINTER = DIRECT_POINTER_NUMBER;
+	public static final int DOUBLE_INDIRECT_POINTER = INDIRECT_POINTER + 1;
+	public static final int POINTER_PER_DESCRIPTOR = DOUBLE_INDIRECT_POINTER + 1;
+	public static final int NO_BLOCK = 1;
+	public static final int INLINE_LENGTH = POINTER_PER_DESCRIPTOR * PackableMemory.BYTE_PER_INT;
+	
+	private static final int FREE_LENGTH = 1;
+	private static final int INLINE_FLAG = 1;
+	private static final int DIRECTORY_FLAG = 2;
+	private static final int LENGTH_INTEGERS = 2;
+	private static final int POINTER_START = LENGTH_INTEGERS * PackableMemory.BYTE_PER_INT;
+	private static final int FLAGS_START = POINTER_START + 
+											  POINTER_PER_DESCRIPTOR * PackableMemory.BYTE_PER_INT;
+	private static final long LOW_INTEGER_MASK = 0xffffffffL;
+	private static final int BYTE_MASK = 0xff;
+	private static final int FIRST_FILE_DESCRIPTOR = 1;
+	
+	private long[] _lengths = null;
+	private int[] _blockPointers = null;
+	private int[] _flags = null;
+	private boolean[] _isBlockDirty = null;
+	
+	private int[] _freeDescriptors = null;
+	private int _freeDescriptorsNumber;
+	
+	private int _descriptorStart;
+	private int _descriptorsPerBlock;
+	private int _descriptorNumber;
+	
+	public DescriptorTable(DiskGeometry geometry) {
+		_descriptorStart = geometry.getDescriptorStart();
+		_descriptorsPerBlock = geometry.getDescriptorsPerBlock();
+		_descriptorNumber = geometry.getDescriptorNumber();
+		
+		int slotNumber = geometry.getDescriptorBlocks() * _descriptorsPerBlock;
+		_lengths = new long[slotNumber];
+		_blockPointers = new int[slotNumber * POINTER_PER_DESCRIPTOR];
+		_flags = new int[slotNumber];
+		_isBlockDirty = new boolean[geometry.getDescriptorBlocks()];
+		
+		_freeDescriptors = new int[_descriptorNumber];
+		_freeDescriptorsNumber = 0;
+	}
+	
+	/**
+	 * Takes a free file descriptor, the last one freed first, and gives it
+	 * length 0. Descriptor 0 belongs to the directory and is never handed out.
+	 * @return the descriptor, or FileSystemCore.ERROR_INDEX if none is free
+	 */
+	public int allocate() {
+		while (_freeDescriptorsNumber > 0) {
+			int descriptorIndex = _freeDescriptors[--_freeDescriptorsNumber];
+			if (isFree(descriptorIndex)) {
+				setLength(descriptorIndex, 0);
+				return descriptorIndex;
+			}
+		}
+		return FileSystemCore.ERROR_INDEX;
+	}
+	
+	public long getLength(int descriptorIndex) {
+		return _lengths[descriptorIndex];
+	}
+	
+	public void setLength(int descriptorIndex, long length) {
+		_lengths[descriptorIndex] = length;
+		markDirty(descriptorIndex);
+	}
+	
+	/**
+	 * @param descriptorIndex
+	 * @param pointerIndex 0 for the first block of the file
+	 * @return the data block, or NO_BLOCK
+	 */
+	public int getBlock(int descriptorIndex, int pointerIndex) {
+		return _blockPointers[descriptorIndex * POINTER_PER_DESCRIPTOR + pointerIndex];
+	}
+	
+	public void setBlock(int descriptorIndex, int pointerIndex, int blockIndex) {
+		_blockPointers[descriptorIndex * POINTER_PER_DESCRIPTOR + pointerIndex] = blockIndex;
+		markDirty(descriptorIndex);
+	}
+	
+	public boolean isFree(int descriptorIndex) {
+		return _lengths[descriptorIndex] == FREE_LENGTH &&
+			   getBlock(descriptorIndex, 0) == NO_BLOCK &&
+			   !isInline(descriptorIndex);
+	}
+	
+	public boolean isInline(int descriptorIndex) {
+		return (_flags[descriptorIndex] & INLINE_FLAG) != 0;
+	}
+	
+	public boolean isDirectory(int descriptorIndex) {
+		return (_flags[descriptorIndex] & DIRECTORY_FLAG) != 0;
+	}
+	
+	public void setDirectory(int descriptorIndex) {
+		_flags[descriptorIndex] |= DIRECTORY_FLAG;
+		markDirty(descriptorIndex);
+	}
+	
+	/**
+	 * Copies the INLINE_LENGTH bytes of inline data into dst.
+	 * @param descriptorIndex
+	 * @param dst
+	 */
+	public void getInlineData(int descriptorIndex, byte[] dst) {
+		int start = descriptorIndex * POINTER_PER_DESCRIPTOR;
+		for (int i = 0; i < INLINE_LENGTH; i++) {
+			int pointer = _blockPointers[start + i / PackableMemory.BYTE_PER_INT];
+			int shift = (PackableMemory.BYTE_PER_INT - 1 - i % PackableMemory.BYTE_PER_INT) * 
+						PackableMemory.BIT_PER_BYTE;
+			dst[i] = (byte) (pointer >>> shift);
+		}
+	}
+	
+	/**
+	 * Stores the first INLINE_LENGTH bytes of src in place of the block
+	 * pointers and marks the descriptor inline. It must not own any block.
+	 * @param descriptorIndex
+	 * @param src
+	 */
+	public void setInlineData(int descriptorIndex, byte[] src) {
+		int start = descriptorIndex * POINTER_PER_DESCRIPTOR;
+		for (int i = 0; i < POINTER_PER_DESCRIPTOR; i++) {
+			int pointer = 0;
+			for (int j = 0; j < PackableMemory.BYTE_PER_INT; j++) {
+				pointer = pointer << PackableMemory.BIT_PER_BYTE | 
+						  (src[i * PackableMemory.BYTE_PER_INT + j] & BYTE_MASK);
+			}
+			_blockPointers[start + i] = pointer;
+		}
+		_flags[descriptorIndex] |= INLINE_FLAG;
+		markDirty(descriptorIndex);
+	}
+	
+	/**
+	 * Drops the inline data and leaves the descriptor with no blocks.
+	 * @param descriptorIndex
+	 */
+	public void clearInline(int descriptorIndex) {
+		int start = descriptorIndex * POINTER_PER_DESCRIPTOR;
+		Arrays.fill(_blockPointers, start, start + POINTER_PER_DESCRIPTOR, NO_BLOCK);
+		_flags[descriptorIndex] &= ~INLINE_FLAG;
+		markDirty(descriptorIndex);
+	}
+	
+	/**
+	 * Marks the descriptor free. Its blocks must have been released already.
+	 * @param descriptorIndex
+	 */
+	public void clear(int descriptorIndex) {
+		boolean wasFree = isFree(descriptorIndex);
+		
+		int start = descriptorIndex * POINTER_PER_DESCRIPTOR;
+		Arrays.fill(_blockPointers, start, start + POINTER_PER_DESCRIPTOR, NO_BLOCK);
+		_flags[descriptorIndex] = 0;
+		setLength(descriptorIndex, FREE_LENGTH);
+		
+		if (wasFree || descriptorIndex < FIRST_FILE_DESCRIPTOR || 
+			descriptorIndex >= _descriptorNumber) {
+			return;
+		} else if (_freeDescriptorsNumber == _freeDescriptors.length) {
+			rebuildFreeDescriptors();
+		} else {
+			_freeDescriptors[_freeDescriptorsNumber++] = descriptorIndex;
+		}
+	}
+	
+	/**
+	 * Marks every descriptor free, as on a freshly formatted disk.
+	 */
+	public void clearAll() {
+		Arrays.fill(_lengths, FREE_LENGTH);
+		Arrays.fill(_blockPointers, NO_BLOCK);
+		Arrays.fill(_flags, 0);
+		Arrays.fill(_isBlockDirty, true);
+		rebuildFreeDescriptors();
+	}
+	
+	public void load(BlockCache cache, byte[] block, PackableMemory packMem)
+			throws LDiskOutOfBoundaryException {
+		packMem.setMemory(block);
+		
+		for (int i = 0; i < _isBlockDirty.length; i++) {
+			cache.read_block(_descriptorStart + i, block, 0);
+			
+			int descriptorIndex = i * _descriptorsPerBlock;
+			int pointer = descriptorIndex * POINTER_PER_DESCRIPTOR;
+			for (int loc = 0; loc < block.length; loc += DiskGeometry.DESCRIPTOR_LENGTH) {
+				long high = packMem.unpack(loc);
+				long low = packMem.unpack(loc + PackableMemory.BYTE_PER_INT) & LOW_INTEGER_MASK;
+				_lengths[descriptorIndex] = high << Integer.SIZE | low;
+				for (int j = 0; j < POINTER_PER_DESCRIPTOR; j++) {
+					_blockPointers[pointer++] = packMem.unpack(loc + POINTER_START + 
+															   j * PackableMemory.BYTE_PER_INT);
+				}
+				_flags[descriptorIndex] = packMem.unpack(loc + FLAGS_START);
+				descriptorIndex++;
+			}
+			_isBlockDirty[i] = false;
+		}
+		rebuildFreeDescriptors();
+	}
+	
+	/**
+	 * Writes back the descriptor blocks changed since the last load or store.
+	 * @param cache
+	 * @param block scratch block
+	 * @param packMem
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	public void store(BlockCache cache, byte[] block, PackableMemory packMem)
+			throws LDiskOutOfBoundaryException {
+		packMem.setMemory(block);
+		
+		for (int i = 0; i < _isBlockDirty.length; i++) {
+			if (!_isBlockDirty[i]) {
+				continue;
+			}
+			
+			int descriptorIndex = i * _descriptorsPerBlock;
+			int pointer = descriptorIndex * POINTER_PER_DESCRIPTOR;
+			for (int loc = 0; loc < block.length; loc += DiskGeometry.DESCRIPTOR_LENGTH) {
+				long length = _lengths[descriptorIndex];
+				packMem.pack((int) (length >>> Integer.SIZE), loc);
+				packMem.pack((int) length, loc + PackableMemory.BYTE_PER_INT);
+				for (int j = 0; j < POINTER_PER_DESCRIPTOR; j++) {
+					packMem.pack(_blockPointers[pointer++], loc + POINTER_START + 
+															j * PackableMemory.BYTE_PER_INT);
+				}
+				packMem.pack(_flags[descriptorIndex], loc + FLAGS_START);
+				descriptorIndex++;
+			}
+			
+			cache.write_block(_descriptorStart + i, block, 0);
+			_isBlockDirty[i] = false;
+		}
+	}
+	
+	private void rebuildFreeDescriptors() {
+		_freeDescriptorsNumber = 0;
+		for (int i = _descriptorNumber - 1; i >= FIRST_FILE_DESCRIPTOR; i--) {
+			if (isFree(i)) {
+				_freeDescriptors[_freeDescriptorsNumber++] = i;
+			}
+		}
+	}
+	
+	private void markDirty(int descriptorIndex) {
+		_isBlockDirty[descriptorIndex / _descriptorsPerBlock] = true;
+	}
+}
@@ -0,0 +1,50 @@
+package filesystem;
+
+/**
+ * One entry of a directory listing, filled in by
+ * FileSystemCore.listDirectory(). The same entries can be passed in page
+ * after page.
+ */
+public class DirectoryEntry {
+	private String _name = null;
+	private long _length;
+	private int _blockNumber;
+	private boolean _isDirectory;
+	private int _nextCursor;
+	
+	public String getName() {
+		return _name;
+	}
+	
+	public long getLength() {
+		return _length;
+	}
+	
+	/**
+	 * @return the number of blocks the file or directory has on the ldisk,
+	 * index blocks and blocks preallocated past its length included, 0 when
+	 * the file is kept in its descriptor
+	 */
+	public int getBlockNumber() {
+		return _blockNumber;
+	}
+	
+	public boolean isDirectory() {
+		return _isDirectory;
+	}
+	
+	/**
+	 * @return the cursor that lists the entries after this one
+	 */
+	public int getNextCursor() {
+		return _nextCursor;
+	}
+	
+	void set(String name, long length, int blockNumber, boolean isDirectory, int nextCursor) {
+		_name = name;
+		_length = length;
+		_blockNumber = blockNumber;
+		_isDirectory = isDirectory;
+		_nextCursor = nextCursor;
+	}
+}
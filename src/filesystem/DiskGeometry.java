@@ -0,0 +1,162 @@
+package filesystem;
+
+/**
+ * Volume geometry chosen when the ldisk is initialized. It is stored in the
+ * super block (block 0) and decides where the bitmap, descriptor and data
+ * areas start:
+ * 
+ * | super block | bitmap blocks | descriptor blocks | data blocks |
+ */
+class DiskGeometry {
+	public static final int SUPER_BLOCK_INDEX = 0;
+	public static final int SUPER_BLOCK_LENGTH = 64;
+	
+	public static final int INTEGER_PER_DESCRIPTOR = 8;
+	public static final int DESCRIPTOR_LENGTH = INTEGER_PER_DESCRIPTOR * 
+												PackableMemory.BYTE_PER_INT;
+	
+	private static final int MAGIC = 0x4C44534B;
+	private static final int VERSION = 5;
+	
+	private static final int MIN_BLOCK_LENGTH = SUPER_BLOCK_LENGTH;
+	private static final int MIN_DESCRIPTOR_NUMBER = 2;
+	
+	private int _blockLength;
+	private int _blocksTotalNumber;
+	private int _descriptorNumber;
+	
+	private int _bitmapStart;
+	private int _bitmapBlocks;
+	private int _descriptorStart;
+	private int _descriptorBlocks;
+	private int _dataStart;
+	
+	public DiskGeometry(int blockLength, 
+						int blocksTotalNumber,
+						int descriptorNumber) {
+		_blockLength = blockLength;
+		_blocksTotalNumber = blocksTotalNumber;
+		_descriptorNumber = descriptorNumber;
+		
+		if (blockLength < MIN_BLOCK_LENGTH || blocksTotalNumber <= 0 ||
+			descriptorNumber < MIN_DESCRIPTOR_NUMBER) {
+			return;
+		}
+		
+		long bitsPerBlock = (long) blockLength * PackableMemory.BIT_PER_BYTE;
+		long descriptorsPerBlock = blockLength / DESCRIPTOR_LENGTH;
+		
+		_bitmapStart = SUPER_BLOCK_INDEX + 1;
+		_bitmapBlocks = (int) ((blocksTotalNumber + bitsPerBlock - 1) / bitsPerBlock);
+		_descriptorStart = _bitmapStart + _bitmapBlocks;
+		_descriptorBlocks = (int) ((descriptorNumber + descriptorsPerBlock - 1) / 
+								   descriptorsPerBlock);
+		_dataStart = _descriptorStart + _descriptorBlocks;
+	}
+	
+	/**
+	 * Reads the geometry out of a super block.
+	 * @param superBlock
+	 * @param packMem
+	 * @return null if the block does not hold a valid geometry
+	 */
+	public static DiskGeometry read(byte[] superBlock, PackableMemory packMem) {
+		if (superBlock.length < SUPER_BLOCK_LENGTH) {
+			return null;
+		}
+		
+		packMem.setMemory(superBlock);
+		int loc = 0;
+		int magic = packMem.unpack(loc);
+		loc += PackableMemory.BYTE_PER_INT;
+		int version = packMem.unpack(loc);
+		loc += PackableMemory.BYTE_PER_INT;
+		
+		if (magic != MAGIC || version != VERSION) {
+			return null;
+		}
+		
+		int blockLength = packMem.unpack(loc);
+		loc += PackableMemory.BYTE_PER_INT;
+		int blocksTotalNumber = packMem.unpack(loc);
+		loc += PackableMemory.BYTE_PER_INT;
+		int descriptorNumber = packMem.unpack(loc);
+		
+		DiskGeometry geometry = new DiskGeometry(blockLength, 
+												 blocksTotalNumber,
+												 descriptorNumber);
+		if (!geometry.isValid()) {
+			return null;
+		}
+		return geometry;
+	}
+	
+	public void write(byte[] superBlock, PackableMemory packMem) {
+		packMem.setMemory(superBlock);
+		int loc = 0;
+		packMem.pack(MAGIC, loc);
+		loc += PackableMemory.BYTE_PER_INT;
+		packMem.pack(VERSION, loc);
+		loc += PackableMemory.BYTE_PER_INT;
+		packMem.pack(_blockLength, loc);
+		loc += PackableMemory.BYTE_PER_INT;
+		packMem.pack(_blocksTotalNumber, loc);
+		loc += PackableMemory.BYTE_PER_INT;
+		packMem.pack(_descriptorNumber, loc);
+	}
+	
+	public boolean isValid() {
+		if (_blockLength < MIN_BLOCK_LENGTH) {
+			return false;
+		} else if (_blockLength % DESCRIPTOR_LENGTH != 0) {
+			return false;
+		} else if (_descriptorNumber < MIN_DESCRIPTOR_NUMBER) {
+			return false;
+		}
+		return _blocksTotalNumber > _dataStart && _dataStart > 0;
+	}
+	
+	public long getImageLength() {
+		return (long) _blockLength * _blocksTotalNumber;
+	}
+	
+	public int getBlockLength() {
+		return _blockLength;
+	}
+	
+	public int getBlocksTotalNumber() {
+		return _blocksTotalNumber;
+	}
+	
+	public int getDescriptorNumber() {
+		return _descriptorNumber;
+	}
+	
+	public int getDescriptorsPerBlock() {
+		return _blockLength / DESCRIPTOR_LENGTH;
+	}
+	
+	public int getBitsPerBitmapBlock() {
+		return _blockLength * PackableMemory.BIT_PER_BYTE;
+	}
+	
+	public int getBitmapStart() {
+		return _bitmapStart;
+	}
+	
+	public int getBitmapBlocks() {
+		return _bitmapBlocks;
+	}
+	
+	public int getDescriptorStart() {
+		return _descriptorStart;
+	}
+	
+	public int getDescriptorBlocks() {
+		return _descriptorBlocks;
+	}
+	
+	public int getDataStart() {
+		return _dataStart;
+	}
+}
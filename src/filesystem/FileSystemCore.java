@@ -1,55 +1,96 @@
 package filesystem;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.Vector;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import filesystem.PackableMemory;
-import filesystem.DescriptorPosition;
+import filesystem.DiskGeometry;
 import filesystem.OpenFileRow;
+import iosystem.BlockCache;
 import iosystem.IOSystemCore;
 import iosystem.LDiskOutOfBoundaryException;
 
 public class FileSystemCore {
-	private static final int BITMAP_BLOCK_INDEX = 0;
-
 	private static FileSystemCore _fileSystem = null;
 
 	private PackableMemory _packMem = null;
 	private IOSystemCore _iosystem = null;
+	private BlockCache _cache = null;
+	
+	private DiskGeometry _geometry = null;
+	private BlockBitmap _bitmap = null;
+	private DescriptorTable _descriptors = null;
+	private IndexBlockCache _indexBlocks = null;
 	
-	private int[] _mask = null;
+	private byte[] _descriptorBlock = null;
+	private byte[] _bitmapBlock = null;
+	private byte[] _directoryEntry = null;
+	private byte[] _fillBlock = null;
+	private byte[] _positionalBlock = null;
+	private byte[] _directoryBlock = null;
+	private int _directoryBlockIndex;
+	private int _directoryIndex;
+	private boolean _isDirectoryHeaderDirty;
+	private int _directoryEntriesNumber;
+	private int _directoryDeletedNumber;
 	
-	private int _maxFileLength;
+	private long _maxFileLength;
+	private int _maxFileBlocks;
 	private int _directoryEntrySize;
 	private int _maxFileNum;
 	
-	private Vector<String> _directoryFileNames = null;
-	private HashMap<String, Integer> _filenameAndIndexMap = null;
+	private DentryCache _dentries = null;
 	
-	private DescriptorPosition[] _descriptorPositions = null;
 	private OpenFileRow[] _openFileTable = null;
+	private BufferPool _bufferPool = null;
+	private int _writeBehindBlocks;
+	private int[] _freeHandles = null;
+	private int _freeHandlesNumber;
+	private OpenFile[] _openFiles = null;
 	
-	private static final int BITS_PER_INTEGER = 32;
-	private static final int DATA_BLOCK_START = 7;
-	
-	private static final int INTEGER_PER_DESCRIPTOR = 4;
 	private static final int INTEGER_PER_FILE_DIRECTORY = 2;
 	
-	private static final int BLOCK_PER_DESCRIPTOR = 3;
+	private static final int INDEX_BLOCK_CACHE_CAPACITY = 64;
+	private static final int DENTRY_CACHE_CAPACITY = 256;
+	private static final int MAX_READ_AHEAD_BLOCKS = 64;
+	
+	//block 0 is the super block, so no file ever owns it
+	private static final int INLINE_BLOCK_INDEX = DiskGeometry.SUPER_BLOCK_INDEX;
 	
 	public static final int OFT_SIZE = 4;
+	public static final int MAX_OFT_SIZE = 4096;
 	public static final int ERROR_INDEX = -1;
 	
 	private static final int MAX_FILENAME_LENGTH = 4;
+	private static final int FILENAME_PADDING = 0xff;
+	//UTF-8 never uses the byte 0xff, so no name packs to all 0xff bytes
+	private static final int NO_PACKED_NAME = -1;
+	private static final char MAX_SINGLE_BYTE_CHAR = 0x7f;
+	private static final char PATH_SEPARATOR = '/';
 	
 	private static final int FILE_SYSTEM_INDEX = 0;
+	
+	//descriptor 0 is the root directory, so no entry points at it
+	private static final int EMPTY_DIRECTORY_SLOT = FILE_SYSTEM_INDEX;
+	private static final int DELETED_DIRECTORY_SLOT = ERROR_INDEX;
+	private static final int DIRECTORY_LOAD_NUMERATOR = 3;
+	private static final int DIRECTORY_LOAD_DENOMINATOR = 4;
+	private static final int DIRECTORY_HEADER_SLOT = 0;
+	private static final int DIRECTORY_TABLE_START = 1;
+	
+	public static final int DEFAULT_DESCRIPTOR_NUMBER = 24;
+	public static final int DEFAULT_BLOCK_CACHE_CAPACITY = 256;
+	public static final int DEFAULT_WRITE_BEHIND_BLOCKS = 16;
 		
 	public static FileSystemCore getObject() {
 		if (_fileSystem == null) {
@@ -61,157 +102,122 @@ public class FileSystemCore {
 	private FileSystemCore() {
 		_packMem = PackableMemory.getObject();
 		_iosystem = IOSystemCore.getObject();
+		_cache = new BlockCache(_iosystem, DEFAULT_BLOCK_CACHE_CAPACITY);
 		_openFileTable = null;
-		_maxFileLength = BLOCK_PER_DESCRIPTOR * IOSystemCore.BLOCK_LENGTH;
+		_writeBehindBlocks = DEFAULT_WRITE_BEHIND_BLOCKS;
 		_directoryEntrySize = INTEGER_PER_FILE_DIRECTORY * PackableMemory.BYTE_PER_INT;
-
-		initializeOpenFileTable();
-		initializeDescriptors();
-		initializeMask();
 		
-		_directoryFileNames = new Vector<String>(_maxFileNum * 2);
-		_filenameAndIndexMap = new HashMap<String, Integer>(_maxFileNum * 2);
+		_directoryEntry = new byte[_directoryEntrySize];
+
+		initializeGeometry(new DiskGeometry(IOSystemCore.DEFAULT_BLOCK_LENGTH,
+											IOSystemCore.DEFAULT_BLOCKS_TOTAL_NUMBER,
+											DEFAULT_DESCRIPTOR_NUMBER));
 	}	
 	
 
 	//apis
-	public boolean create(String filename) {
-		if (filename == null) {
+	public boolean create(String path) {
+		return createEntry(path, false);
+	}
+	
+	/**
+	 * Creates an empty directory. Every directory above it must exist.
+	 * @param path
+	 * @return
+	 */
+	public boolean mkdir(String path) {
+		return createEntry(path, true);
+	}
+	
+	/**
+	 * Removes a file, or a directory once it is empty.
+	 * @param path
+	 * @return
+	 */
+	public boolean destroy(String path) {
+		if (path == null) {
 			return false;
 		} else if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
 			return false;
-		} else if (filename.length() > MAX_FILENAME_LENGTH) {
-			return false;
-		} else if (filename.isEmpty()){
-			return false;
-		} else if (_directoryFileNames.size() >= _maxFileNum) {
-			return false;
-		} else if (_filenameAndIndexMap.containsKey(filename)) {
-			return false;
 		}
-				
-		int openFileTableIndex = FILE_SYSTEM_INDEX;
 		
-		int start = 0;
-		if (!seek(openFileTableIndex, start)){
-			return false;
-		}
-
-		int freeDescriptorIndex = getAndUpdateFreeDescriptorIndex();
-		if (freeDescriptorIndex == ERROR_INDEX) {
+		int nameStart = getNameStart(path);
+		int parentIndex = lookupDirectory(path, nameStart - 1);
+		if (parentIndex == ERROR_INDEX) {
 			return false;
 		}
 		
-		byte[] saveBytes = retrieveDirEntryByteArray(filename,
-				freeDescriptorIndex);
-				
-		int length = PackableMemory.BYTE_PER_INT * INTEGER_PER_FILE_DIRECTORY;
-
-		byte[] readBytes = new byte[length];
-		for (int i = 0; i < readBytes.length; i++) {
-			readBytes[i] = 0;
-		}
-		
-		if (!updateDirectoryBuffer(openFileTableIndex, start, length, readBytes,
-				saveBytes)) {
+		int packedName = packFilename(path, nameStart, path.length());
+		int decriptorIndex = lookupEntry(parentIndex, packedName);
+		if (decriptorIndex == ERROR_INDEX) {
 			return false;
 		}
 		
-		_directoryFileNames.add(filename);
-		_filenameAndIndexMap.put(filename, freeDescriptorIndex);
-		
-		return true;
-	}
-
-	public boolean destroy(String filename) {
-		if (filename == null) {
-			return false;
-		} else if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
-			return false;
-		} else if (filename.length() > MAX_FILENAME_LENGTH) {
-			return false;
-		} else if (filename.isEmpty()) {
-			return false;
-		} else if (_directoryFileNames.size() <= 0) {
-			return false;
-		} else if (!_filenameAndIndexMap.containsKey(filename)) {
+		if (isFileOpen(decriptorIndex)) {
 			return false;
 		}
 		
-		int decriptorIndex = _filenameAndIndexMap.get(filename).intValue();
-		for (int i = 1; i < _openFileTable.length; i++) {
-			if (!_openFileTable[i].isFree()) {
-				if (_openFileTable[i].getDescriptorIndex() == decriptorIndex) {
-					return false;
-				}
+		boolean isDirectory = isDirectory(decriptorIndex);
+		if (isDirectory) {
+			if (!selectDirectory(decriptorIndex)) {
+				return false;
+			} else if (_directoryEntriesNumber > 0) {
+				return false;
 			}
 		}
 		
-		int openFileTableIndex = FILE_SYSTEM_INDEX;
-
-		int start = 0;
-		if (!seek(openFileTableIndex, start)){
+		if (!selectDirectory(parentIndex)) {
 			return false;
 		}
 		
-		int length = PackableMemory.BYTE_PER_INT * INTEGER_PER_FILE_DIRECTORY;
-
-		byte[] readBytes = retrieveDirEntryByteArray(filename,
-				decriptorIndex);
-		byte[] saveBytes = new byte[length];
-				
-		for (int i = 0; i < saveBytes.length; i++) {
-			saveBytes[i] = 0;
-		}
-		
-		if (!updateDirectoryBuffer(openFileTableIndex, start, length, readBytes,
-				saveBytes)) {
+		int slot = findDirectorySlot(packedName);
+		if (slot == ERROR_INDEX) {
 			return false;
-		}
-		
-		if (!clearDescriptor(decriptorIndex)) {
+		} else if (!removeDirectoryEntry(slot)) {
 			return false;
 		}
 		
-		_directoryFileNames.remove(filename);
-		_filenameAndIndexMap.remove(filename);
-		return true;
+		_dentries.put(parentIndex, packedName, ERROR_INDEX);
+		
+		if (isDirectory) {
+			//the blocks of the directory are about to be reused
+			_directoryBlockIndex = ERROR_INDEX;
+		}
+		return clearDescriptor(decriptorIndex);
 	}
 	
-	public int open(String filename) {
+	public int open(String path) {
 		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
 			return ERROR_INDEX;
-		} else if (filename == null) {
+		} else if (path == null) {
 			return ERROR_INDEX;
-		} else if (filename.isEmpty()) {
+		}
+		
+		int nameStart = getNameStart(path);
+		int parentIndex = lookupDirectory(path, nameStart - 1);
+		if (parentIndex == ERROR_INDEX) {
 			return ERROR_INDEX;
-		} else if (filename.length() > MAX_FILENAME_LENGTH) {
+		}
+		
+		int descriptorIndex = lookupEntry(parentIndex, 
+										  packFilename(path, nameStart, path.length()));
+		if (descriptorIndex == ERROR_INDEX) {
 			return ERROR_INDEX;
-		} else if (!_filenameAndIndexMap.containsKey(filename)) {
+		} else if (isDirectory(descriptorIndex)) {
 			return ERROR_INDEX;
 		}
 		
-		for (int i = 1; i < _openFileTable.length; i++) {
-			if (!_openFileTable[i].isFree()) {
-				int descriptorIndex = _filenameAndIndexMap.get(filename).intValue();
-				if (_openFileTable[i].getDescriptorIndex() == descriptorIndex) {
-					return ERROR_INDEX;
-				}	
-			}
+		int index = allocateHandle();
+		if (index == ERROR_INDEX) {
+			return ERROR_INDEX;
 		}
 		
-		int index = ERROR_INDEX;
-		for (int i = 1; i < _openFileTable.length; i++) {
-			if (_openFileTable[i].isFree()) {
-				index = i;
-				int descriptorIndex = _filenameAndIndexMap.get(filename).intValue();
-				_openFileTable[i].setDescriptorIndex(descriptorIndex);	
-				if (!updateFileLengthToOft(i)) {
-					_openFileTable[i].freeOpenFileRow();
-					return ERROR_INDEX;
-				}
-				break;
-			}
+		//a file already open keeps the length its other handles have written
+		boolean isOpen = isFileOpen(descriptorIndex);
+		_openFileTable[index].attach(getOpenFile(descriptorIndex));
+		if (!isOpen && !updateFileLengthToOft(index)) {
+			releaseHandle(index);
+			return ERROR_INDEX;
 		}
 		
 		return index;
@@ -240,48 +246,70 @@ public class FileSystemCore {
 			return null;
 		} else if (count < 0) {
 			return null;
-		} else if (!prepareOft(index)) {
-			return null;
 		}
 		
-		int fileLength = _openFileTable[index].getFileLength();
-		int curPos = _openFileTable[index].getCurrentPosition();
-		
+		long fileLength = _openFileTable[index].getFileLength();
+		long curPos = _openFileTable[index].getCurrentPosition();
 		if (curPos + count > fileLength) {
 			return null;
-		} else if (!saveOdtBuffer(index)) {
-			return null;
 		}
 		
+		byte[] readBytes = new byte[count];
+		if (read(index, readBytes, 0, count) != count) {
+			return null;
+		}
+		return new String(readBytes);
+	}
 
+	/**
+	 * Reads from the position of an open file into dst, copying straight
+	 * from the buffer of the file.
+	 * @param index
+	 * @param dst
+	 * @param offset
+	 * @param length
+	 * @return the number of bytes read, short of length only at the end of
+	 * the file, or ERROR_INDEX
+	 */
+	public int read(int index, byte[] dst, int offset, int length) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return ERROR_INDEX;
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return ERROR_INDEX;
+		} else if (_openFileTable[index].isFree()) {
+			return ERROR_INDEX;
+		} else if (dst == null) {
+			return ERROR_INDEX;
+		} else if (offset < 0 || length < 0 || length > dst.length - offset) {
+			return ERROR_INDEX;
+		} else if (!flushWriteBehind(index)) {
+			return ERROR_INDEX;
+		} else if (!prepareOft(index)) {
+			return ERROR_INDEX;
+		} else if (!saveOdtBuffer(index)) {
+			return ERROR_INDEX;
+		}
 				
-		StringBuffer readBuffer = new StringBuffer("");
-		
-		
-		while (count > 0) {
-			String bufferString = _openFileTable[index].getBufferPartition(count);
-			
-			if (bufferString == null) {
-				return null;
+		OpenFileRow row = _openFileTable[index];
+		int count = (int) Math.min(length, row.getFileLength() - row.getCurrentPosition());
+		for (int done = 0; done < count; ) {
+			int size = row.readBuffer(dst, offset + done, count - done);
+			if (size == 0) {
+				return ERROR_INDEX;
 			}
 			
-			count -= bufferString.length();
-			readBuffer.append(bufferString);
-			
-			if (count <= 0) {
+			done += size;
+			if (done >= count) {
 				break;
 			}
 			
 			if (!saveOdtBuffer(index)) {
-				return null;
-			}
-			if (!prepareOft(index)) {
-				return null;
+				return ERROR_INDEX;
+			} else if (!prepareOft(index)) {
+				return ERROR_INDEX;
 			}
-
 		}
-		
-		return readBuffer.toString();
+		return count;
 	}
 	
 	public boolean write(int index, String writeString, int count) {
@@ -301,27 +329,23 @@ public class FileSystemCore {
 			return false;
 		}
 		
-		char[] writeCharArray = writeString.toCharArray();
-		if (writeCharArray.length != 1) {
-			return false;
-		}
-		char writeChar = writeCharArray[0];
-		byte[] writeBytes = new byte[count];
-		for (int i = 0; i < writeBytes.length; i++) {
-			writeBytes[i] = (byte) writeChar;
-		}
-		
-		int curPos = _openFileTable[index].getCurrentPosition();
+		long curPos = _openFileTable[index].getCurrentPosition();
 		if (count + curPos > _maxFileLength) {
 			return false;
 		} else if (!prepareOft(index)) {
 			return false;
 		}
 		
+		//the byte is written a block at a time from one reused block
+		byte[] writeBytes = _fillBlock;
+		Arrays.fill(writeBytes, (byte) writeString.charAt(0));
 		
-		int start = 0;
-		if (!updateOftBuffer(index, count, writeBytes, start)) {
-			return false;
+		while (count > 0) {
+			int length = Math.min(count, writeBytes.length);
+			if (!updateOftBuffer(index, writeBytes, 0, length)) {
+				return false;
+			}
+			count -= length;
 		}
 		
 		return true;
@@ -329,810 +353,2174 @@ public class FileSystemCore {
 
 	
 	
-	public boolean lseek(int index, int pos) {		
+	/**
+	 * Same as read(index, dst, offset, length) for the remaining space of 
+	 * dst, which is filled from its position.
+	 * @param index
+	 * @param dst
+	 * @return the number of bytes read, or ERROR_INDEX
+	 */
+	public int read(int index, ByteBuffer dst) {
 		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
-			return false;
-		} else if (index == ERROR_INDEX || pos == ERROR_INDEX){
-			return false;
-		} else if (index < 0 || index >= _openFileTable.length || index == FILE_SYSTEM_INDEX) {
-			return false;
+			return ERROR_INDEX;
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return ERROR_INDEX;
 		} else if (_openFileTable[index].isFree()) {
-			return false;
-		} else if (pos < 0 || pos > _openFileTable[index].getFileLength()) {
-			return false;
+			return ERROR_INDEX;
+		} else if (dst == null) {
+			return ERROR_INDEX;
+		} else if (!flushWriteBehind(index)) {
+			return ERROR_INDEX;
 		} else if (!prepareOft(index)) {
-			return false;
+			return ERROR_INDEX;
 		} else if (!saveOdtBuffer(index)) {
-			return false;
-		} 
-		
-		return seek(index, pos);
-	}
-
-	
-	
-	public String[] directory() {
-		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
-			return null;
-		} 
-		
-		String[] directory = new String[_directoryFileNames.size()];
-		for (int i = 0; i < directory.length; i++) {
-			directory[i] = _directoryFileNames.get(i);
+			return ERROR_INDEX;
 		}
 		
-		return directory;
+		OpenFileRow row = _openFileTable[index];
+		int count = (int) Math.min(dst.remaining(), row.getFileLength() - row.getCurrentPosition());
+		for (int done = 0; done < count; ) {
+			int size = row.readBuffer(dst, count - done);
+			if (size == 0) {
+				return ERROR_INDEX;
+			}
+			
+			done += size;
+			if (done >= count) {
+				break;
+			}
+			
+			if (!saveOdtBuffer(index)) {
+				return ERROR_INDEX;
+			} else if (!prepareOft(index)) {
+				return ERROR_INDEX;
+			}
+		}
+		return count;
 	}
 	
-	public boolean init(String filename) {
-		if (filename == null) {
+	/**
+	 * Writes length bytes of src at the position of an open file, copying
+	 * straight into the buffer of the file.
+	 * @param index
+	 * @param src
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public boolean write(int index, byte[] src, int offset, int length) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
 			return false;
-		}
-		
-		
-		
-		Path dir = Paths.get(filename);
-		
-		boolean isSuccess = true;
-		
-		if (filename.isEmpty()) {
-			for (int i = 0; i < _openFileTable.length; i++) {
-				_openFileTable[i].freeOpenFileRow();
-			}
-			_directoryFileNames = new Vector<String>(_maxFileNum * 2);
-			_filenameAndIndexMap = new HashMap<String, Integer>(_maxFileNum * 2);
-			
-		    byte[] fileArray = initializeFileArray();
-		    isSuccess = initializeLDisk(fileArray);
-		} else if (Files.exists(dir)){
-			isSuccess = loadFile(dir);
-		} else {
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return false;
+		} else if (_openFileTable[index].isFree()) {
+			return false;
+		} else if (src == null) {
+			return false;
+		} else if (offset < 0 || length < 0 || length > src.length - offset) {
 			return false;
 		}
 		
-		if (isSuccess) {
-			int index = FILE_SYSTEM_INDEX;
-			_openFileTable[index].setDescriptorIndex(index);
-			
-			initializeDirectory(index);
-			
-			return true;
+		if (length + _openFileTable[index].getCurrentPosition() > _maxFileLength) {
+			return false;
+		} else if (!prepareOft(index)) {
+			return false;
 		}
 		
-		return false;
+		return updateOftBuffer(index, src, offset, length);
 	}
-
-	public boolean save(String filename) {	
-		if (filename == null) {
+	
+	/**
+	 * Writes the remaining bytes of src at the position of an open file,
+	 * copying straight into the buffer of the file. src is consumed as far
+	 * as it was written.
+	 * @param index
+	 * @param src
+	 * @return
+	 */
+	public boolean write(int index, ByteBuffer src) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
 			return false;
-		} else if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
 			return false;
-		} else if (filename.isEmpty()) {
+		} else if (_openFileTable[index].isFree()) {
+			return false;
+		} else if (src == null) {
 			return false;
 		}
 		
-		Path dir = Paths.get(filename);
-		
-		if (!Files.exists(dir)) {
-		    try {
-				Files.createFile(dir);
-			} catch (IOException e) {
-				return false;
-			}
+		OpenFileRow row = _openFileTable[index];
+		if (src.remaining() + row.getCurrentPosition() > _maxFileLength) {
+			return false;
+		} else if (!prepareOft(index)) {
+			return false;
 		}
 		
-		for (int i = 0; i < _openFileTable.length; i++) {
-			if (!closeOdtBuffer(i)) {
+		int remaining = row.updateBuffer(src);
+		while (remaining > 0) {
+			if (!saveFullBuffer(index)) {
 				return false;
-			}		
+			} else if (!prepareOft(index)) {
+				return false;
+			}
+			remaining = row.updateBuffer(src);
 		}
-		
-		byte[] fileArray = null;
-		try {
-			fileArray = getAllLDiskDatas();
-		} catch (LDiskOutOfBoundaryException e) {
+		return true;
+	}
+	
+	public boolean lseek(int index, long pos) {		
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
 			return false;
-		}
-		if (fileArray == null) {
+		} else if (index == ERROR_INDEX || pos == ERROR_INDEX){
 			return false;
-		}	
-		
-		if (!writeFile(dir, fileArray)) {
+		} else if (index < 0 || index >= _openFileTable.length || index == FILE_SYSTEM_INDEX) {
 			return false;
-		}
+		} else if (_openFileTable[index].isFree()) {
+			return false;
+		} else if (pos < 0 || pos > _openFileTable[index].getFileLength()) {
+			return false;
+		} else if (!flushWriteBehind(index)) {
+			return false;
+		} else if (!prepareOft(index)) {
+			return false;
+		} else if (!saveOdtBuffer(index)) {
+			return false;
+		} 
 		
-		_directoryFileNames.clear();
-		_filenameAndIndexMap.clear();
-		return true;
+		return seek(index, pos);
 	}
 
-
 	
-	//private methods
-	private boolean writeFile(Path dir, byte[] fileArray) {
-	    FileOutputStream outputStream = null;
-	    File file = dir.toFile();
-
-		try {
-			outputStream = new FileOutputStream(file);
-			outputStream.write(fileArray);
-			outputStream.flush();
-		} catch (IOException e) {
+	
+	/**
+	 * @param index
+	 * @return the position of an open file, or ERROR_INDEX
+	 */
+	public long getPosition(int index) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return ERROR_INDEX;
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return ERROR_INDEX;
+		} else if (_openFileTable[index].isFree()) {
+			return ERROR_INDEX;
+		}
+		return _openFileTable[index].getCurrentPosition();
+	}
+	
+	/**
+	 * @param index
+	 * @return the length of an open file, with what its handles have 
+	 * written so far, or ERROR_INDEX
+	 */
+	public long getLength(int index) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return ERROR_INDEX;
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return ERROR_INDEX;
+		} else if (_openFileTable[index].isFree()) {
+			return ERROR_INDEX;
+		}
+		return _openFileTable[index].getFileLength();
+	}
+	
+	/**
+	 * @param index
+	 * @return a channel over an open file, or null if the handle is not 
+	 * open. Closing the channel closes the handle.
+	 */
+	public SeekableByteChannel getChannel(int index) {
+		if (getPosition(index) == ERROR_INDEX) {
+			return null;
+		}
+		return new OpenFileChannel(this, index);
+	}
+	
+	/**
+	 * @param index
+	 * @return a stream reading an open file from its position, or null if
+	 * the handle is not open. Closing the stream closes the handle.
+	 */
+	public InputStream getInputStream(int index) {
+		if (getPosition(index) == ERROR_INDEX) {
+			return null;
+		}
+		return new OpenFileInputStream(this, index);
+	}
+	
+	/**
+	 * @param index
+	 * @return a stream writing an open file at its position, or null if the
+	 * handle is not open. Closing the stream closes the handle.
+	 */
+	public OutputStream getOutputStream(int index) {
+		if (getPosition(index) == ERROR_INDEX) {
+			return null;
+		}
+		return new OpenFileOutputStream(this, index);
+	}
+	
+	/**
+	 * Reserves the data blocks for the first length bytes of an open file
+	 * without changing its length, laying them out contiguously where the
+	 * disk allows so later reads cover one run of blocks.
+	 * @param index
+	 * @param length
+	 * @return
+	 */
+	public boolean preallocate(int index, long length) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return false;
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return false;
+		} else if (_openFileTable[index].isFree()) {
+			return false;
+		} else if (length < 0 || length > _maxFileLength) {
+			return false;
+		} else if (!flushWriteBehind(index)) {
+			return false;
+		} else if (!saveOdtBuffer(index)) {
+			return false;
+		}
+		
+		int descriptorIndex = _openFileTable[index].getDescriptorIndex();
+		if (_descriptors.isInline(descriptorIndex)) {
+			if (length <= DescriptorTable.INLINE_LENGTH) {
+				return true;
+			} else if (!spillInlineData(descriptorIndex)) {
+				return false;
+			}
+		}
+		
+		int blockLength = _geometry.getBlockLength();
+		int blockNum = (int) ((length + blockLength - 1) / blockLength);
+		return reserveBlocks(descriptorIndex, blockNum);
+	}
+	
+	/**
+	 * Writes the blocks held back for an open file to the ldisk, and the
+	 * block it is in to the block cache.
+	 * @param index
+	 * @return
+	 */
+	public boolean flush(int index) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return false;
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return false;
+		} else if (_openFileTable[index].isFree()) {
+			return false;
+		} else if (!flushWriteBehind(index)) {
+			return false;
+		}
+		
+		return saveOdtBuffer(index);
+	}
+	
+	/**
+	 * Reads from an open file at an offset, leaving the position of the
+	 * handle and its buffer as they are.
+	 * @param index
+	 * @param offset
+	 * @param dst filled from the start
+	 * @return the number of bytes read, short of dst.length only at the end
+	 * of the file, or ERROR_INDEX
+	 */
+	public int pread(int index, long offset, byte[] dst) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return ERROR_INDEX;
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return ERROR_INDEX;
+		} else if (_openFileTable[index].isFree()) {
+			return ERROR_INDEX;
+		} else if (dst == null) {
+			return ERROR_INDEX;
+		}
+		
+		OpenFile file = _openFileTable[index].getFile();
+		if (offset < 0 || offset > file.getFileLength()) {
+			return ERROR_INDEX;
+		}
+		
+		int count = (int) Math.min(dst.length, file.getFileLength() - offset);
+		int blockLength = _geometry.getBlockLength();
+		for (int done = 0; done < count; ) {
+			long position = offset + done;
+			int blockOffset = (int) (position % blockLength);
+			int length = Math.min(blockLength - blockOffset, count - done);
+			
+			if (!readFileBlock(file, (int) (position / blockLength), blockOffset, 
+							   dst, done, length)) {
+				return ERROR_INDEX;
+			}
+			done += length;
+		}
+		return count;
+	}
+	
+	/**
+	 * Writes to an open file at an offset no further than its end, leaving 
+	 * the position of the handle and its buffer as they are.
+	 * @param index
+	 * @param offset
+	 * @param src
+	 * @return
+	 */
+	public boolean pwrite(int index, long offset, byte[] src) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return false;
+		} else if (index == FILE_SYSTEM_INDEX || index < 0 || index >= _openFileTable.length) {
+			return false;
+		} else if (_openFileTable[index].isFree()) {
+			return false;
+		} else if (src == null) {
+			return false;
+		}
+		
+		OpenFile file = _openFileTable[index].getFile();
+		int descriptorIndex = file.getDescriptorIndex();
+		if (offset < 0 || offset > file.getFileLength()) {
+			return false;
+		} else if (offset + src.length > _maxFileLength) {
+			return false;
+		} else if (isInlineFile(descriptorIndex) && 
+				   offset + src.length > DescriptorTable.INLINE_LENGTH &&
+				   !spillOpenFile(index)) {
+			return false;
+		}
+		
+		int blockLength = _geometry.getBlockLength();
+		for (int done = 0; done < src.length; ) {
+			long position = offset + done;
+			int blockOffset = (int) (position % blockLength);
+			int length = Math.min(blockLength - blockOffset, src.length - done);
+			
+			if (!writeFileBlock(file, (int) (position / blockLength), blockOffset, 
+								src, done, length)) {
+				return false;
+			}
+			done += length;
+			
+			if (position + length > file.getFileLength()) {
+				file.setFileLength(position + length);
+				updateFileLengthInDescriptor(descriptorIndex, file.getFileLength());
+			}
+		}
+		return true;
+	}
+	
+	public String[] directory() {
+		return directory(String.valueOf(PATH_SEPARATOR));
+	}
+	
+	/**
+	 * @param path
+	 * @return the names in the directory, or null if there is no such directory
+	 */
+	public String[] directory(String path) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return null;
+		} else if (path == null) {
+			return null;
+		}
+		
+		int directoryIndex = lookupDirectory(path, path.length());
+		if (directoryIndex == ERROR_INDEX) {
+			return null;
+		} else if (!selectDirectory(directoryIndex)) {
+			return null;
+		}
+		
+		String[] directory = new String[_directoryEntriesNumber];
+		int count = 0;
+		int slotNumber = getDirectorySlotNumber();
+		for (int slot = 0; slot < slotNumber && count < directory.length; slot++) {
+			int position = loadDirectorySlot(slot);
+			if (position == ERROR_INDEX) {
+				return null;
+			}
+			
+			int descriptorIndex = _packMem.unpack(position + PackableMemory.BYTE_PER_INT);
+			if (descriptorIndex != EMPTY_DIRECTORY_SLOT && 
+				descriptorIndex != DELETED_DIRECTORY_SLOT) {
+				directory[count++] = unpackFilename(_packMem.unpack(position));
+			}
+		}
+		
+		return directory;
+	}
+	
+	/**
+	 * Lists a directory a page at a time in the order its entries sit on
+	 * disk, filling entries from the start. Listing starts at cursor 0 and
+	 * goes on from the next cursor of the last entry filled. A cursor stays
+	 * valid until the directory is changed.
+	 * @param path
+	 * @param cursor
+	 * @param entries
+	 * @return the number of entries filled, 0 past the last entry, or 
+	 * ERROR_INDEX if there is no such directory
+	 */
+	public int listDirectory(String path, int cursor, DirectoryEntry[] entries) {
+		if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return ERROR_INDEX;
+		} else if (path == null || entries == null) {
+			return ERROR_INDEX;
+		} else if (cursor < 0) {
+			return ERROR_INDEX;
+		}
+		
+		int directoryIndex = lookupDirectory(path, path.length());
+		if (directoryIndex == ERROR_INDEX) {
+			return ERROR_INDEX;
+		} else if (!selectDirectory(directoryIndex)) {
+			return ERROR_INDEX;
+		}
+		
+		int slotNumber = getDirectorySlotNumber();
+		int count = 0;
+		for (int slot = cursor; slot < slotNumber && count < entries.length; slot++) {
+			int position = loadDirectorySlot(slot);
+			if (position == ERROR_INDEX) {
+				return ERROR_INDEX;
+			}
+			
+			int descriptorIndex = _packMem.unpack(position + PackableMemory.BYTE_PER_INT);
+			if (descriptorIndex == EMPTY_DIRECTORY_SLOT || 
+				descriptorIndex == DELETED_DIRECTORY_SLOT) {
+				continue;
+			}
+			
+			String name = unpackFilename(_packMem.unpack(position));
+			int blockNumber = countFileBlocks(descriptorIndex);
+			if (blockNumber == ERROR_INDEX) {
+				return ERROR_INDEX;
+			}
+			
+			if (entries[count] == null) {
+				entries[count] = new DirectoryEntry();
+			}
+			entries[count].set(name, 
+							   _descriptors.getLength(descriptorIndex),
+							   blockNumber,
+							   isDirectory(descriptorIndex),
+							   slot + 1);
+			count++;
+		}
+		return count;
+	}
+	
+	public boolean init(String filename) {
+		if (filename == null) {
+			return false;
+		} else if (filename.isEmpty()) {
+			return init(IOSystemCore.DEFAULT_BLOCK_LENGTH,
+						IOSystemCore.DEFAULT_BLOCKS_TOTAL_NUMBER,
+						DEFAULT_DESCRIPTOR_NUMBER);
+		}
+		
+		Path dir = Paths.get(filename);
+		
+		if (!Files.exists(dir)) {
+			return false;
+		} else if (!loadFile(dir)) {
+			return false;
+		}
+		
+		return initializeFileSystemDirectory();
+	}
+			
+	/**
+	 * Initializes an empty heap ldisk with the given geometry.
+	 * @param blockLength bytes per block, at least 64 and a multiple of 16
+	 * @param blocksTotalNumber
+	 * @param descriptorNumber including the directory descriptor
+	 * @return
+	 */
+	public boolean init(int blockLength, int blocksTotalNumber, int descriptorNumber) {
+		DiskGeometry geometry = new DiskGeometry(blockLength, 
+												 blocksTotalNumber, 
+												 descriptorNumber);
+		if (!geometry.isValid()) {
+			return false;
+		}
+		
+		_iosystem.format(blocksTotalNumber, blockLength);
+		initializeGeometry(geometry);
+		
+		if (!formatLDisk()) {
+			return false;
+		}
+		
+		return initializeFileSystemDirectory();
+	}
+
+	/**
+	 * Mounts an image file as a memory-mapped ldisk. Blocks are accessed in
+	 * place, so nothing is loaded up front and save() on the same file only
+	 * has to force the mapping. A missing or empty file is formatted with 
+	 * the default geometry. Any other file that is not an image of this
+	 * version is left as it is and not mounted.
+	 * @param filename
+	 * @return
+	 */
+	public boolean mount(String filename) {
+		return mount(filename, 
+					 IOSystemCore.DEFAULT_BLOCK_LENGTH,
+					 IOSystemCore.DEFAULT_BLOCKS_TOTAL_NUMBER,
+					 DEFAULT_DESCRIPTOR_NUMBER);
+	}
+	
+	/**
+	 * Same as mount(filename), but a missing or empty file is formatted 
+	 * with the given geometry. A formatted image keeps its own.
+	 * @param filename
+	 * @param blockLength
+	 * @param blocksTotalNumber
+	 * @param descriptorNumber
+	 * @return
+	 */
+	public boolean mount(String filename, int blockLength, int blocksTotalNumber, 
+			int descriptorNumber) {
+		if (filename == null) {
+			return false;
+		} else if (filename.isEmpty()) {
+			return false;
+		}
+		
+		Path dir = Paths.get(filename);
+		DiskGeometry geometry = null;
+		
+		try {
+			if (Files.exists(dir) && Files.size(dir) > 0) {
+				geometry = readGeometry(dir);
+				if (geometry == null) {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		
+		boolean isFormatted = geometry != null;
+		if (!isFormatted) {
+			geometry = new DiskGeometry(blockLength, blocksTotalNumber, descriptorNumber);
+			if (!geometry.isValid()) {
+				return false;
+			}
+		}
+		
+		try {
+			_iosystem.map(dir, 
+						  geometry.getBlocksTotalNumber(), 
+						  geometry.getBlockLength(), 
+						  !isFormatted);
+		} catch (IOException e) {
+			return false;
+		}
+		
+		initializeGeometry(geometry);
+		
+		if (!isFormatted && !formatLDisk()) {
+			return false;
+		} else if (isFormatted && !loadMetadata()) {
+			return false;
+		}
+		
+		return initializeFileSystemDirectory();
+	}
+	
+	public boolean save(String filename) {	
+		if (filename == null) {
+			return false;
+		} else if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return false;
+		} else if (filename.isEmpty()) {
+			return false;
+		}
+		
+		Path dir = Paths.get(filename);
+		
+		for (int i = 0; i < _openFileTable.length; i++) {
+			if (!closeOdtBuffer(i)) {
+				return false;
+			}		
+		}
+		
+		if (!storeDirectoryHeader()) {
+			return false;
+		}
+		
+		try {
+			_indexBlocks.store(_cache, _packMem);
+			_bitmap.store(_cache, _bitmapBlock);
+			_descriptors.store(_cache, _descriptorBlock, _packMem);
+			_cache.flush();
+			_iosystem.save(dir);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+		
+		return true;
+	}
+
+
+	
+	public BlockCache getBlockCache() {
+		return _cache;
+	}
+	
+	/**
+	 * Sets how many full blocks an open file writing ahead holds back before
+	 * they go to the ldisk in one batch. 0 writes every block to the block 
+	 * cache as soon as it is full.
+	 * @param blocks
+	 * @return
+	 */
+	public boolean setWriteBehindBlocks(int blocks) {
+		if (blocks < 0) {
+			return false;
+		}
+		
+		for (int i = 1; i < _openFileTable.length; i++) {
+			if (!flushWriteBehind(i)) {
+				return false;
+			}
+		}
+		
+		_writeBehindBlocks = blocks;
+		return true;
+	}
+	
+	/**
+	 * Replaces the block cache with one of the given number of frames. Dirty
+	 * frames of the current cache are written back first.
+	 * @param capacity
+	 * @return
+	 */
+	public boolean setBlockCacheCapacity(int capacity) {
+		if (capacity <= 0) {
+			return false;
+		}
+		
+		try {
+			_cache.flush();
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		
+		_cache = new BlockCache(_iosystem, capacity);
+		return true;
+	}
+	
+	//private methods
+	private void initializeGeometry(DiskGeometry geometry) {
+		_geometry = geometry;
+		_cache.invalidate();
+		
+		int blockLength = _geometry.getBlockLength();
+		_indexBlocks = new IndexBlockCache(blockLength, INDEX_BLOCK_CACHE_CAPACITY);
+		
+		long pointersPerBlock = _indexBlocks.getPointersPerBlock();
+		long maxFileBlocks = DescriptorTable.DIRECT_POINTER_NUMBER + pointersPerBlock +
+							 pointersPerBlock * pointersPerBlock;
+		_maxFileBlocks = (int) Math.min(maxFileBlocks, _geometry.getBlocksTotalNumber());
+		_maxFileLength = (long) _maxFileBlocks * blockLength;
+		_maxFileNum = (int) Math.min(_geometry.getDescriptorNumber() - 1,
+									 _maxFileLength / _directoryEntrySize - DIRECTORY_TABLE_START);
+		
+		_descriptorBlock = new byte[blockLength];
+		_bitmapBlock = new byte[blockLength];
+		_directoryBlock = new byte[blockLength];
+		_fillBlock = new byte[blockLength];
+		_positionalBlock = new byte[blockLength];
+		_directoryBlockIndex = ERROR_INDEX;
+		_directoryIndex = ERROR_INDEX;
+		_bitmap = new BlockBitmap(_geometry.getBlocksTotalNumber(),
+								  blockLength,
+								  _geometry.getBitmapStart(),
+								  _geometry.getBitmapBlocks());
+		_descriptors = new DescriptorTable(_geometry);
+		
+		initializeOpenFileTable();
+		
+		_dentries = new DentryCache(DENTRY_CACHE_CAPACITY);
+	}
+	
+	private boolean initializeFileSystemDirectory() {
+		int index = FILE_SYSTEM_INDEX;
+		_openFileTable[index].attach(getOpenFile(index));
+		
+		return selectDirectory(index);
+	}
+	
+	private boolean loadFile(Path dir) {
+		DiskGeometry geometry = readGeometry(dir);
+		if (geometry == null) {
+			return false;
+		}
+		
+		try {
+			_iosystem.load(dir, geometry.getBlocksTotalNumber(), geometry.getBlockLength());
+		} catch (IOException e) {
+			return false;
+		}
+		
+		initializeGeometry(geometry);
+		
+		try {
+			_iosystem.preload(DiskGeometry.SUPER_BLOCK_INDEX, _geometry.getDataStart());
+		} catch (LDiskOutOfBoundaryException e) {
 			return false;
+		}
+		return loadMetadata();
+	}
+	
+	private DiskGeometry readGeometry(Path dir) {
+		FileChannel channel = null;
+		byte[] superBlock = new byte[DiskGeometry.SUPER_BLOCK_LENGTH];
+		ByteBuffer buffer = ByteBuffer.wrap(superBlock);
+		
+		try {
+			channel = FileChannel.open(dir, StandardOpenOption.READ);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, buffer.position()) < 0) {
+					return null;
+				}
+			}
+		
+			DiskGeometry geometry = DiskGeometry.read(superBlock, _packMem);
+			if (geometry == null || channel.size() != geometry.getImageLength()) {
+				return null;
+			}
+			return geometry;
+		} catch (IOException e) {
+			return null;
 		} finally {
-			if(outputStream != null) {
-	            try {
-	            	outputStream.close();
-	            } catch (IOException e) {
-	            	return false;
-	            }
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					return null;
+				}
+			}
+		}
+	}
+	
+	private boolean formatLDisk() {
+		byte[] block = _descriptorBlock;
+		
+		try {
+			Arrays.fill(block, (byte) 0);
+			_geometry.write(block, _packMem);
+			_cache.write_block(DiskGeometry.SUPER_BLOCK_INDEX, block, 0);
+		
+			for (int i = 0; i < _geometry.getDataStart(); i++) {
+				_bitmap.set(i);
+			}
+			_bitmap.markAllDirty();
+			_bitmap.store(_cache, _bitmapBlock);
+			
+			_descriptors.clearAll();
+			_descriptors.store(_cache, _descriptorBlock, _packMem);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		return true;
+	}
+		
+	private boolean loadMetadata() {
+		try {
+			_bitmap.load(_cache, _bitmapBlock);
+			_descriptors.load(_cache, _descriptorBlock, _packMem);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private void initializeOpenFileTable() {
+		_bufferPool = new BufferPool(_geometry.getBlockLength());
+		_openFileTable = new OpenFileRow[0];
+		_freeHandles = new int[0];
+		_freeHandlesNumber = 0;
+		growOpenFileTable(OFT_SIZE);
+		
+		//row 0 stands for the root directory and is never handed out
+		_freeHandlesNumber--;
+		
+		_openFiles = new OpenFile[_geometry.getDescriptorNumber()];
+	}
+	
+	/**
+	 * @param descriptorIndex
+	 * @return the state the handles of the file share, kept for the next
+	 * time the file is opened once they are all closed
+	 */
+	private OpenFile getOpenFile(int descriptorIndex) {
+		if (_openFiles[descriptorIndex] == null) {
+			_openFiles[descriptorIndex] = new OpenFile(descriptorIndex, _bufferPool);
+		}
+		return _openFiles[descriptorIndex];
+	}
+	
+	private boolean isFileOpen(int descriptorIndex) {
+		return _openFiles[descriptorIndex] != null && _openFiles[descriptorIndex].isOpen();
+	}
+	
+	/**
+	 * Takes a free row of the open file table, the last one freed first,
+	 * doubling the table when every row is in use.
+	 * @return the handle, or ERROR_INDEX if MAX_OFT_SIZE files are open
+	 */
+	private int allocateHandle() {
+		if (_freeHandlesNumber == 0) {
+			if (_openFileTable.length >= MAX_OFT_SIZE) {
+				return ERROR_INDEX;
+			}
+			growOpenFileTable(Math.min(_openFileTable.length * 2, MAX_OFT_SIZE));
+		}
+		return _freeHandles[--_freeHandlesNumber];
+	}
+	
+	private void growOpenFileTable(int length) {
+		int oldLength = _openFileTable.length;
+		_openFileTable = Arrays.copyOf(_openFileTable, length);
+		_freeHandles = Arrays.copyOf(_freeHandles, length);
+		
+		for (int i = length - 1; i >= oldLength; i--) {
+			_openFileTable[i] = new OpenFileRow(_geometry.getBlockLength());
+			_freeHandles[_freeHandlesNumber++] = i;
+		}
+	}
+	
+	private void releaseHandle(int odtIndex) {
+		OpenFileRow row = _openFileTable[odtIndex];
+		if (row.isFree()) {
+			return;
+		} else if (odtIndex != FILE_SYSTEM_INDEX) {
+			_freeHandles[_freeHandlesNumber++] = odtIndex;
+		}
+		row.freeOpenFileRow();
+	}
+
+	private boolean closeOdtBuffer(int odtIndex) {
+		if (!flushWriteBehind(odtIndex)) {
+			return false;
+		} else if (!saveOdtBuffer(odtIndex)) {
+			return false;
+		}
+		
+		releaseHandle(odtIndex);
+		return true;
+	}
+
+	private boolean saveOdtBuffer(int odtIndex) {
+		if (odtIndex < 0 || odtIndex >= _openFileTable.length) {
+			return false;
+		} else if (_openFileTable[odtIndex].isFree()) {
+			return true;
+		} else if (_openFileTable[odtIndex].hasNoBlock()) {
+			return true;
+		}
+		
+		int descriptorIndex = _openFileTable[odtIndex].getDescriptorIndex();
+		long fileLength = _openFileTable[odtIndex].getFileLength();
+		int blockIndex = _openFileTable[odtIndex].getCurrentBlockIndex();
+		byte[] block = _openFileTable[odtIndex].getBuffer();
+				
+		if (!updateFileLengthInDescriptor(descriptorIndex, fileLength)) {
+			return false;
+		} else if (!_openFileTable[odtIndex].isDirty()) {
+			return true;
+		} else if (blockIndex == INLINE_BLOCK_INDEX) {
+			if (!saveInlineBuffer(descriptorIndex, fileLength, block)) {
+				return false;
+			}
+			_openFileTable[odtIndex].markClean();
+			return true;
+		}
+
+		try {
+			_cache.write_block(blockIndex, block, 0);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		_openFileTable[odtIndex].markClean();
+		return true;
+	}
+	
+	/**
+	 * Saves a full buffer a writer is moving on from. A block of a file is
+	 * held back in the row instead of going to the block cache, and the
+	 * blocks held back are flushed together once there are enough of them.
+	 * @param odtIndex
+	 * @return
+	 */
+	private boolean saveFullBuffer(int odtIndex) {
+		OpenFileRow row = _openFileTable[odtIndex];
+		if (_writeBehindBlocks == 0 || row.hasNoBlock() || !row.isDirty() ||
+			row.getCurrentBlockIndex() == INLINE_BLOCK_INDEX) {
+			return saveOdtBuffer(odtIndex);
+		} else if (!updateFileLengthInDescriptor(row.getDescriptorIndex(), row.getFileLength())) {
+			return false;
+		}
+		
+		if (row.getFile().holdBackBuffer(_writeBehindBlocks)) {
+			return flushWriteBehind(odtIndex);
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the blocks held back for the file open in a row in block order,
+	 * one ldisk write per run of contiguous blocks, and gives their buffers
+	 * back to the pool.
+	 * @param odtIndex
+	 * @return
+	 */
+	private boolean flushWriteBehind(int odtIndex) {
+		if (_openFileTable[odtIndex].isFree()) {
+			return true;
+		}
+		
+		OpenFile file = _openFileTable[odtIndex].getFile();
+		int number = file.getWriteBehindNumber();
+		if (number == 0) {
+			return true;
+		}
+		
+		file.sortWriteBehind();
+		int runStart = 0;
+		try {
+			for (int i = 1; i <= number; i++) {
+				if (i < number && 
+					file.getWriteBehindBlock(i) == file.getWriteBehindBlock(i - 1) + 1) {
+					continue;
+				}
+				
+				_cache.write_blocks(file.getWriteBehindBlock(runStart), i - runStart, 
+									file.getWriteBehind(), runStart);
+				runStart = i;
+			}
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		
+		file.clearWriteBehind();
+		return true;
+	}
+	
+	/**
+	 * Keeps a buffer holding the whole file in the descriptor while the file
+	 * fits there, and moves it to the first data block once it does not.
+	 * @param descriptorIndex
+	 * @param fileLength
+	 * @param block
+	 * @return
+	 */
+	private boolean saveInlineBuffer(int descriptorIndex, long fileLength, byte[] block) {
+		if (isInlineFile(descriptorIndex) && fileLength <= DescriptorTable.INLINE_LENGTH) {
+			_descriptors.setInlineData(descriptorIndex, block);
+			return true;
+		} else if (_descriptors.isInline(descriptorIndex)) {
+			_descriptors.clearInline(descriptorIndex);
+		}
+		
+		int blockIndex = getCurrentBlockFromDescriptor(descriptorIndex, 1);
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			return false;
+		}
+		
+		try {
+			_cache.write_block(blockIndex, block, 0);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		return true;
+	}
+	
+	private boolean spillInlineData(int descriptorIndex) {
+		byte[] block = _descriptorBlock;
+		Arrays.fill(block, (byte) 0);
+		_descriptors.getInlineData(descriptorIndex, block);
+		_descriptors.clearInline(descriptorIndex);
+		
+		int blockIndex = getCurrentBlockFromDescriptor(descriptorIndex, 1);
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			return false;
+		}
+		
+		try {
+			_cache.write_block(blockIndex, block, 0);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Moves an open file kept in its descriptor to its first data block, 
+	 * along with the buffer of the file if it holds the inline data.
+	 * @param odtIndex
+	 * @return
+	 */
+	private boolean spillOpenFile(int odtIndex) {
+		OpenFile file = _openFileTable[odtIndex].getFile();
+		int descriptorIndex = file.getDescriptorIndex();
+		boolean isBuffered = file.getCurrentBlockIndex() == INLINE_BLOCK_INDEX;
+		
+		if (isBuffered && !saveOdtBuffer(odtIndex)) {
+			return false;
+		} else if (_descriptors.isInline(descriptorIndex) && !spillInlineData(descriptorIndex)) {
+			return false;
+		}
+		
+		if (isBuffered) {
+			int blockIndex = getCurrentBlockFromDescriptor(descriptorIndex, 1);
+			if (blockIndex == DescriptorTable.NO_BLOCK) {
+				return false;
+			}
+			file.setCurrentBlock(0, blockIndex);
+		}
+		return true;
+	}
+	
+	/**
+	 * Copies part of a file block to dst from wherever its latest bytes are:
+	 * the buffer of the file, a block held back for writing, the descriptor
+	 * or the block cache.
+	 * @param file
+	 * @param fileBlock
+	 * @param blockOffset
+	 * @param dst
+	 * @param dstOffset
+	 * @param length
+	 * @return
+	 */
+	private boolean readFileBlock(OpenFile file, int fileBlock, int blockOffset, 
+			byte[] dst, int dstOffset, int length) {
+		int descriptorIndex = file.getDescriptorIndex();
+		int blockLength = _geometry.getBlockLength();
+		byte[] block = _positionalBlock;
+		
+		if (file.holdsFileBlock(fileBlock)) {
+			System.arraycopy(file.getBuffer(), blockOffset, dst, dstOffset, length);
+			return true;
+		} else if (fileBlock == 0 && isInlineFile(descriptorIndex)) {
+			Arrays.fill(block, (byte) 0);
+			if (_descriptors.isInline(descriptorIndex)) {
+				_descriptors.getInlineData(descriptorIndex, block);
+			}
+			System.arraycopy(block, blockOffset, dst, dstOffset, length);
+			return true;
+		}
+		
+		int blockIndex = lookupFileBlock(descriptorIndex, fileBlock);
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			Arrays.fill(dst, dstOffset, dstOffset + length, (byte) 0);
+			return true;
+		}
+		
+		int heldBack = file.findWriteBehind(blockIndex);
+		if (heldBack != ERROR_INDEX) {
+			System.arraycopy(file.getWriteBehind(heldBack), blockOffset, dst, dstOffset, length);
+			return true;
+		}
+		
+		try {
+			if (length == blockLength) {
+				_cache.read_block(blockIndex, dst, dstOffset);
+				return true;
+			}
+			_cache.read_block(blockIndex, block, 0);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		System.arraycopy(block, blockOffset, dst, dstOffset, length);
+		return true;
+	}
+	
+	/**
+	 * Copies src into part of a file block wherever its latest bytes are, so
+	 * the buffer of the file and the blocks held back stay current. The 
+	 * block is given to the file if it has none there yet.
+	 * @param file
+	 * @param fileBlock
+	 * @param blockOffset
+	 * @param src
+	 * @param srcOffset
+	 * @param length
+	 * @return
+	 */
+	private boolean writeFileBlock(OpenFile file, int fileBlock, int blockOffset, 
+			byte[] src, int srcOffset, int length) {
+		int descriptorIndex = file.getDescriptorIndex();
+		int blockLength = _geometry.getBlockLength();
+		byte[] block = _positionalBlock;
+		
+		if (file.holdsFileBlock(fileBlock)) {
+			System.arraycopy(src, srcOffset, file.getBuffer(), blockOffset, length);
+			file.markDirty();
+			return true;
+		} else if (fileBlock == 0 && isInlineFile(descriptorIndex)) {
+			Arrays.fill(block, (byte) 0);
+			if (_descriptors.isInline(descriptorIndex)) {
+				_descriptors.getInlineData(descriptorIndex, block);
+			}
+			System.arraycopy(src, srcOffset, block, blockOffset, length);
+			return saveInlineBuffer(descriptorIndex, 
+									Math.max(file.getFileLength(), blockOffset + length), 
+									block);
+		}
+		
+		boolean isNewBlock = lookupFileBlock(descriptorIndex, fileBlock) == 
+							 DescriptorTable.NO_BLOCK;
+		int blockIndex = getCurrentBlockFromDescriptor(descriptorIndex, fileBlock + 1);
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			return false;
+		}
+		
+		int heldBack = file.findWriteBehind(blockIndex);
+		if (heldBack != ERROR_INDEX) {
+			System.arraycopy(src, srcOffset, file.getWriteBehind(heldBack), blockOffset, length);
+			return true;
+		}
+		
+		try {
+			if (length == blockLength) {
+				_cache.write_block(blockIndex, src, srcOffset);
+				return true;
+			} else if (isNewBlock) {
+				Arrays.fill(block, (byte) 0);
+			} else {
+				_cache.read_block(blockIndex, block, 0);
 			}
+			System.arraycopy(src, srcOffset, block, blockOffset, length);
+			_cache.write_block(blockIndex, block, 0);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
 		}
 		return true;
 	}
+	
+	private boolean isInlineFile(int descriptorIndex) {
+		if (descriptorIndex == FILE_SYSTEM_INDEX) {
+			return false;
+		} else if (_descriptors.isInline(descriptorIndex)) {
+			return true;
+		}
+		return _descriptors.getBlock(descriptorIndex, 0) == DescriptorTable.NO_BLOCK &&
+			   _descriptors.getLength(descriptorIndex) <= DescriptorTable.INLINE_LENGTH;
+	}
 
-	private boolean loadFile(Path dir) {
-		byte[] fileArray;
-		try {
-			fileArray = Files.readAllBytes(dir);
-			return initializeLDisk(fileArray);
-			
-		} catch (IOException e) {
-			return false;
+	private boolean updateFileLengthInDescriptor(int descriptorIndex,
+			long fileLength) {
+		_descriptors.setLength(descriptorIndex, fileLength);
+		return true;
+	}
+	
+	private long getFileLengthInDescriptor(int descriptorIndex) {
+		if (_descriptors.isFree(descriptorIndex)) {
+			_descriptors.setLength(descriptorIndex, 0);
 		}
+		return _descriptors.getLength(descriptorIndex);
 	}
+		
+	private boolean clearDescriptor(int descriptorIndex) {
+		if (_descriptors.isInline(descriptorIndex)) {
+			_descriptors.clear(descriptorIndex);
+			return true;
+		}
 
-	private byte[] initializeFileArray() {
-		int fileArrayLength = IOSystemCore.BLOCK_LENGTH * IOSystemCore.BLOCKS_TOTAL_NUMBER;
-		byte[] fileArray = new byte[fileArrayLength];
+		for (int i = 0; i < DescriptorTable.DIRECT_POINTER_NUMBER; i++) {
+			int dataBlockIndex = _descriptors.getBlock(descriptorIndex, i);
+			if (dataBlockIndex != DescriptorTable.NO_BLOCK) {
+				if (!removeBitInBitmap(dataBlockIndex)) {
+					return false;
+				}
+			}
+		}
 		
-		_packMem.setMemory(fileArray);
+		int indirect = _descriptors.getBlock(descriptorIndex, DescriptorTable.INDIRECT_POINTER);
+		if (!freeIndexBlock(indirect, 1)) {
+			return false;
+		}
 		
-		int[] bitmap = initializeBitmap();
-		int[] ldiskInteger = new int[IOSystemCore.BLOCK_LENGTH * 
-		                             IOSystemCore.BLOCKS_TOTAL_NUMBER/
-		                             PackableMemory.BYTE_PER_INT];
+		int doubleIndirect = _descriptors.getBlock(descriptorIndex, 
+												   DescriptorTable.DOUBLE_INDIRECT_POINTER);
+		if (!freeIndexBlock(doubleIndirect, 2)) {
+			return false;
+		}
 		
-		for (int i = 0; i < bitmap.length; i++) {
-			ldiskInteger[i] = bitmap[i];
+		_descriptors.clear(descriptorIndex);
+		return true;
+	}
+	
+	/**
+	 * Frees an index block and every block under it.
+	 * @param blockIndex
+	 * @param depth 1 when the index block points at data blocks
+	 * @return
+	 */
+	private boolean freeIndexBlock(int blockIndex, int depth) {
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			return true;
 		}
 		
-		for (int i = bitmap.length; i < ldiskInteger.length; i++) {
-			ldiskInteger[i] = 0;
+		try {
+			for (int i = 0; i < _indexBlocks.getPointersPerBlock(); i++) {
+				int pointer = _indexBlocks.get(_cache, _packMem, blockIndex, i);
+				if (pointer == DescriptorTable.NO_BLOCK) {
+					continue;
+				} else if (depth > 1 && !freeIndexBlock(pointer, depth - 1)) {
+					return false;
+				} else if (depth == 1 && !removeBitInBitmap(pointer)) {
+					return false;
+				}
+			}
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
 		}
 		
-		int blockIntegerStart = _descriptorPositions[0].getBlockIntegerNum() +
-								_descriptorPositions[0].getBlockIndex() *
-								IOSystemCore.BLOCK_LENGTH /
-								PackableMemory.BYTE_PER_INT;
-		int blockIntegerEnd = 	_descriptorPositions[_descriptorPositions.length - 1].getBlockIntegerNum() +
-								_descriptorPositions[_descriptorPositions.length - 1].getBlockIndex() *
-								IOSystemCore.BLOCK_LENGTH /
-								PackableMemory.BYTE_PER_INT;
-		blockIntegerEnd += 3;
+		_indexBlocks.release(blockIndex);
+		return removeBitInBitmap(blockIndex);
+	}
+	
+	/**
+	 * @param descriptorIndex
+	 * @return the number of data and index blocks the descriptor has, 
+	 * preallocated ones included, or ERROR_INDEX
+	 */
+	private int countFileBlocks(int descriptorIndex) {
+		if (_descriptors.isInline(descriptorIndex)) {
+			return 0;
+		}
 		
-		for (int i = blockIntegerStart; i <= blockIntegerEnd; i++) {
-			ldiskInteger[i] = 1;
+		int count = 0;
+		for (int i = 0; i < DescriptorTable.DIRECT_POINTER_NUMBER; i++) {
+			if (_descriptors.getBlock(descriptorIndex, i) != DescriptorTable.NO_BLOCK) {
+				count++;
+			}
 		}
 		
-		int bytePosition = 0;
-		for (int i = 0; i < ldiskInteger.length; i++) {
-			_packMem.pack(ldiskInteger[i], bytePosition);
-			bytePosition += PackableMemory.BYTE_PER_INT;
+		try {
+			count += countIndexBlock(_descriptors.getBlock(descriptorIndex, 
+														   DescriptorTable.INDIRECT_POINTER), 1);
+			count += countIndexBlock(_descriptors.getBlock(descriptorIndex, 
+														   DescriptorTable.DOUBLE_INDIRECT_POINTER), 2);
+		} catch (LDiskOutOfBoundaryException e) {
+			return ERROR_INDEX;
+		}
+		return count;
+	}
+	
+	/**
+	 * Counts an index block and every block under it.
+	 * @param blockIndex
+	 * @param depth 1 when the index block points at data blocks
+	 * @return
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	private int countIndexBlock(int blockIndex, int depth) throws LDiskOutOfBoundaryException {
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			return 0;
 		}
 		
-		fileArray = _packMem.getMemory();
+		int count = 1;
+		for (int i = 0; i < _indexBlocks.getPointersPerBlock(); i++) {
+			int pointer = _indexBlocks.get(_cache, _packMem, blockIndex, i);
+			if (pointer == DescriptorTable.NO_BLOCK) {
+				continue;
+			}
+			count += depth > 1 ? countIndexBlock(pointer, depth - 1) : 1;
+		}
+		return count;
+	}
+	
+	private boolean removeBitInBitmap(int dataBlockIndex) {
+		if (dataBlockIndex < _geometry.getDataStart() || 
+			dataBlockIndex >= _geometry.getBlocksTotalNumber()) {
+			return false;
+		}
 		
-		return fileArray;
+		_bitmap.free(dataBlockIndex);
+		return true;
 	}
 	
-	private int[] initializeBitmap() {
-		int bitmapSize = 	IOSystemCore.BLOCKS_TOTAL_NUMBER /
-							( PackableMemory.BIT_PER_BYTE * 
-							PackableMemory.BYTE_PER_INT);
-		int[] bitmap = new int[bitmapSize];
+	private boolean updateFileLengthToOft(int openFileTableIndex) {
+		int index = _openFileTable[openFileTableIndex].getDescriptorIndex();
+		long fileLength = getFileLengthInDescriptor(index);
+		
+		if (fileLength == ERROR_INDEX) {
+			return false;
+		}
 		
-		int bitmapZero = _mask[0];
-		for (int i = 1; i < DATA_BLOCK_START; i++) {
-			bitmapZero |= _mask[i];
+		_openFileTable[openFileTableIndex].setFileLength(fileLength);
+		return true;
+	}
+
+	private boolean prepareOft(int openFileTableIndex) {
+		if (!_openFileTable[openFileTableIndex].ownsBuffer()) {
+			//the handle that used the buffer last leaves it saved
+			if (!saveOdtBuffer(openFileTableIndex)) {
+				return false;
+			}
+			_openFileTable[openFileTableIndex].takeOverBuffer();
 		}
-		bitmap[0] = bitmapZero;
 		
-		for (int i = 1; i < bitmap.length; i++) {
-			bitmap[i] = 0;
+		if (_openFileTable[openFileTableIndex].hasNoBlock()) {
+			if (!updateFileLengthToOft(openFileTableIndex)) {
+				return false;
+			}
+			if (!updateOdtBufferAndBlock(openFileTableIndex)) {
+				return false;
+			}
+		} else if (_openFileTable[openFileTableIndex].isFull()) {			
+			if (!saveOdtBuffer(openFileTableIndex)) {
+				return false;
+			} 
+			if (_openFileTable[openFileTableIndex].getCurrentPosition() >= _maxFileLength) {
+				return true;
+			}
+			if (!updateOdtBufferAndBlock(openFileTableIndex)) {
+				return false;
+			}
 		}
-		return bitmap;
+		return true;
 	}
-	
-	private boolean initializeLDisk(byte[] fileArray) {
-		int blockIndex = 0;
-		int blockLength = 0;
-		byte[] block = new byte[IOSystemCore.BLOCK_LENGTH];
+
+	private boolean updateOdtBufferAndBlock(int openFileTableIndex) {
+		int descriptorIndex = _openFileTable[openFileTableIndex].getDescriptorIndex();
+		long position = _openFileTable[openFileTableIndex].getCurrentPosition();
+		int curPosition = (int) (position / _geometry.getBlockLength());
+		curPosition += 1;
 		
-		for (int i = 0; i < fileArray.length; i++) {
 		
-			block[blockLength] = fileArray[i];
-			
-			blockLength++;
-			if (blockLength == IOSystemCore.BLOCK_LENGTH) {
-				try {
-					_iosystem.write_block(blockIndex, block);
-				} catch (LDiskOutOfBoundaryException e) {
-					return false;
-				}
-				blockIndex++;
-				blockLength = 0;
+		
+		if (curPosition == 1 && isInlineFile(descriptorIndex)) {
+			byte[] buffer = _openFileTable[openFileTableIndex].getBuffer();
+			Arrays.fill(buffer, (byte) 0);
+			if (_descriptors.isInline(descriptorIndex)) {
+				_descriptors.getInlineData(descriptorIndex, buffer);
 			}
+			_openFileTable[openFileTableIndex].setCurrentBlockIndex(INLINE_BLOCK_INDEX);
+			return true;
+		}
+		
+		boolean isNewBlock = lookupFileBlock(descriptorIndex, curPosition - 1) == 
+							 DescriptorTable.NO_BLOCK;
+		int blockIndex = getCurrentBlockFromDescriptor(descriptorIndex, curPosition);
+		
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			return false;
+		}
+		
+		_openFileTable[openFileTableIndex].setCurrentBlockIndex(blockIndex);
+
+		byte[] buffer = _openFileTable[openFileTableIndex].getBuffer();
+		if (isNewBlock) {
+			//nothing of the file is in a block it has just been given
+			Arrays.fill(buffer, (byte) 0);
+			return true;
+		} else if (_openFileTable[openFileTableIndex].getFile().findWriteBehind(blockIndex) != 
+				   ERROR_INDEX && !flushWriteBehind(openFileTableIndex)) {
+			//another handle of the file may be holding the block back
+			return false;
+		}
+		
+		try {
+			_cache.read_block(blockIndex, buffer, 0);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		
+		int readAheadBlocks = _openFileTable[openFileTableIndex].advanceReadAhead(
+				curPosition - 1, Math.min(MAX_READ_AHEAD_BLOCKS, _cache.getCapacity() / 4), 
+				getBlockNumberOfFile(descriptorIndex));
+		if (readAheadBlocks > 0) {
+			int readAheadEnd = _openFileTable[openFileTableIndex].getReadAheadEnd();
+			readAhead(descriptorIndex, readAheadEnd - readAheadBlocks, readAheadEnd);
 		}
 		return true;
 	}
 	
-	private byte[] getAllLDiskDatas() throws LDiskOutOfBoundaryException {
-		int fileArrayLength = IOSystemCore.BLOCK_LENGTH * IOSystemCore.BLOCKS_TOTAL_NUMBER;
-		byte[] fileArray = new byte[fileArrayLength];
+	/**
+	 * Prefetches the blocks a file already has between two file blocks into
+	 * the block cache, one transfer per run of contiguous blocks. Nothing
+	 * past the end of the file is read.
+	 * @param descriptorIndex
+	 * @param start
+	 * @param end
+	 */
+	private void readAhead(int descriptorIndex, int start, int end) {
+		long blockLength = _geometry.getBlockLength();
+		long fileBlocks = (_descriptors.getLength(descriptorIndex) + blockLength - 1) / blockLength;
+		end = (int) Math.min(end, fileBlocks);
 		
-		int fileArrayIndex = 0;
-		for (int blockIndex = 0; blockIndex < IOSystemCore.BLOCK_LENGTH; blockIndex++) {
-			byte[] block = _iosystem.read_block(blockIndex);
+		int runStart = DescriptorTable.NO_BLOCK;
+		int runLength = 0;
+		try {
+			for (int fileBlock = start; fileBlock < end; fileBlock++) {
+				int blockIndex = lookupFileBlock(descriptorIndex, fileBlock);
+				if (runLength > 0 && blockIndex == runStart + runLength) {
+					runLength++;
+					continue;
+				}
+				
+				if (runLength > 0) {
+					_cache.prefetch(runStart, runLength);
+				}
+				runStart = blockIndex;
+				runLength = blockIndex == DescriptorTable.NO_BLOCK ? 0 : 1;
+			}
 			
-			for (int blockLength = 0; blockLength < block.length; blockLength++) {
-				fileArray[fileArrayIndex] = block[blockLength];
-				fileArrayIndex++;
+			if (runLength > 0) {
+				_cache.prefetch(runStart, runLength);
 			}
+		} catch (LDiskOutOfBoundaryException e) {
+			//read-ahead is only a hint, so the read itself reports any error
 		}
-		
-		return fileArray;
 	}
-	
-	private void initializeMask() {
-		_mask = new int[BITS_PER_INTEGER];
+
+	private int getCurrentBlockFromDescriptor(int descriptorIndex,
+			int curPosition) {
+		if (curPosition < 1 || curPosition > _maxFileBlocks) {
+			return DescriptorTable.NO_BLOCK;
+		}
+		
+		int fileBlock = curPosition - 1;
+		int dataBlockIndex = lookupFileBlock(descriptorIndex, fileBlock);
+		if (dataBlockIndex != DescriptorTable.NO_BLOCK) {
+			return dataBlockIndex;
+		}
 		
-		int maskLength = _mask.length;
-		_mask[maskLength - 1] = 1;
+		int goal = ERROR_INDEX;
+		if (fileBlock > 0) {
+			goal = getGoalBlock(lookupFileBlock(descriptorIndex, fileBlock - 1));
+		}
 		
-		for (int i = maskLength - 2; i >= 0; i--) {
-			_mask[i] = _mask[i + 1] << 1;
+		dataBlockIndex = allocateFreeBlock(goal);
+		if (dataBlockIndex == DescriptorTable.NO_BLOCK) {
+			return DescriptorTable.NO_BLOCK;
+		} else if (!installFileBlock(descriptorIndex, fileBlock, dataBlockIndex)) {
+			removeBitInBitmap(dataBlockIndex);
+			return DescriptorTable.NO_BLOCK;
 		}
+		return dataBlockIndex;
 	}
 	
-	private void initializeDescriptors() {
-		int descriptorNumbers = 	(INTEGER_PER_DESCRIPTOR - 1)
-									* IOSystemCore.BLOCK_LENGTH
-									/ ( INTEGER_PER_FILE_DIRECTORY
-									* PackableMemory.BYTE_PER_INT);
-		
-		_maxFileNum = descriptorNumbers - 1;
-		
-		int integersPerBlock = 	IOSystemCore.BLOCK_LENGTH / 
-								PackableMemory.BYTE_PER_INT;
-		
-		int blockIndex = 1;
-		int blockInteger = 0;
+	/**
+	 * Finds the data block holding a block of a file, going through the
+	 * indirect blocks past the direct pointers.
+	 * @param descriptorIndex
+	 * @param fileBlock 0 for the first block of the file
+	 * @return the data block, or DescriptorTable.NO_BLOCK if it has none
+	 */
+	private int lookupFileBlock(int descriptorIndex, int fileBlock) {
+		if (fileBlock < 0 || fileBlock >= _maxFileBlocks) {
+			return DescriptorTable.NO_BLOCK;
+		} else if (_descriptors.isInline(descriptorIndex)) {
+			return DescriptorTable.NO_BLOCK;
+		} else if (fileBlock < DescriptorTable.DIRECT_POINTER_NUMBER) {
+			return _descriptors.getBlock(descriptorIndex, fileBlock);
+		}
 		
-		_descriptorPositions = new DescriptorPosition[descriptorNumbers];
+		int pointersPerBlock = _indexBlocks.getPointersPerBlock();
+		fileBlock -= DescriptorTable.DIRECT_POINTER_NUMBER;
 		
-		for (int i = 0; i < _descriptorPositions.length; i++) {
-			int blockPosition = blockInteger * PackableMemory.BYTE_PER_INT;
-			
-			_descriptorPositions[i] = new DescriptorPosition(blockIndex, 
-														     blockPosition,
-														     blockInteger);
+		try {
+			if (fileBlock < pointersPerBlock) {
+				int indirect = _descriptors.getBlock(descriptorIndex, 
+													 DescriptorTable.INDIRECT_POINTER);
+				if (indirect == DescriptorTable.NO_BLOCK) {
+					return DescriptorTable.NO_BLOCK;
+				}
+				return _indexBlocks.get(_cache, _packMem, indirect, fileBlock);
+			}
 			
-			blockInteger += INTEGER_PER_DESCRIPTOR;
+			fileBlock -= pointersPerBlock;
+			int doubleIndirect = _descriptors.getBlock(descriptorIndex, 
+													   DescriptorTable.DOUBLE_INDIRECT_POINTER);
+			if (doubleIndirect == DescriptorTable.NO_BLOCK) {
+				return DescriptorTable.NO_BLOCK;
+			}
 			
-			if (blockInteger >= integersPerBlock){
-				blockInteger = 0;
-				blockIndex++;
+			int indirect = _indexBlocks.get(_cache, _packMem, doubleIndirect, 
+											fileBlock / pointersPerBlock);
+			if (indirect == DescriptorTable.NO_BLOCK) {
+				return DescriptorTable.NO_BLOCK;
+			}
+			return _indexBlocks.get(_cache, _packMem, indirect, fileBlock % pointersPerBlock);
+		} catch (LDiskOutOfBoundaryException e) {
+			return DescriptorTable.NO_BLOCK;
+		}
+	}
+	
+	/**
+	 * Points a block of a file at a data block, allocating the indirect
+	 * blocks on the way when the file does not have them yet.
+	 * @param descriptorIndex
+	 * @param fileBlock 0 for the first block of the file
+	 * @param dataBlockIndex
+	 * @return
+	 */
+	private boolean installFileBlock(int descriptorIndex, int fileBlock, int dataBlockIndex) {
+		if (fileBlock < 0 || fileBlock >= _maxFileBlocks) {
+			return false;
+		} else if (_descriptors.isInline(descriptorIndex)) {
+			return false;
+		} else if (fileBlock < DescriptorTable.DIRECT_POINTER_NUMBER) {
+			_descriptors.setBlock(descriptorIndex, fileBlock, dataBlockIndex);
+			return true;
+		}
+		
+		int pointersPerBlock = _indexBlocks.getPointersPerBlock();
+		fileBlock -= DescriptorTable.DIRECT_POINTER_NUMBER;
+		
+		try {
+			int indirect = DescriptorTable.NO_BLOCK;
+			if (fileBlock < pointersPerBlock) {
+				indirect = getIndexBlockFromDescriptor(descriptorIndex, 
+													   DescriptorTable.INDIRECT_POINTER);
+			} else {
+				fileBlock -= pointersPerBlock;
+				int doubleIndirect = getIndexBlockFromDescriptor(descriptorIndex, 
+																 DescriptorTable.DOUBLE_INDIRECT_POINTER);
+				if (doubleIndirect == DescriptorTable.NO_BLOCK) {
+					return false;
+				}
+				
+				int slot = fileBlock / pointersPerBlock;
+				indirect = _indexBlocks.get(_cache, _packMem, doubleIndirect, slot);
+				if (indirect == DescriptorTable.NO_BLOCK) {
+					indirect = allocateIndexBlock();
+					if (indirect != DescriptorTable.NO_BLOCK) {
+						_indexBlocks.set(_cache, _packMem, doubleIndirect, slot, indirect);
+					}
+				}
+				fileBlock %= pointersPerBlock;
 			}
 			
+			if (indirect == DescriptorTable.NO_BLOCK) {
+				return false;
+			}
+			_indexBlocks.set(_cache, _packMem, indirect, fileBlock, dataBlockIndex);
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
+		}
+		return true;
+	}
+	
+	private int getIndexBlockFromDescriptor(int descriptorIndex, int pointer) 
+			throws LDiskOutOfBoundaryException {
+		int blockIndex = _descriptors.getBlock(descriptorIndex, pointer);
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			blockIndex = allocateIndexBlock();
+			if (blockIndex != DescriptorTable.NO_BLOCK) {
+				_descriptors.setBlock(descriptorIndex, pointer, blockIndex);
+			}
 		}
+		return blockIndex;
 	}
-
-	private void initializeOpenFileTable() {
-		_openFileTable = new OpenFileRow[OFT_SIZE];
-		for (int i = 0; i < _openFileTable.length; i++) {
-			_openFileTable[i] = new OpenFileRow(IOSystemCore.BLOCK_LENGTH);
+	
+	private int allocateIndexBlock() throws LDiskOutOfBoundaryException {
+		int blockIndex = allocateFreeBlock(ERROR_INDEX);
+		if (blockIndex != DescriptorTable.NO_BLOCK) {
+			_indexBlocks.format(_cache, _packMem, blockIndex);
 		}
+		return blockIndex;
 	}
 
-	private boolean closeOdtBuffer(int odtIndex) {
-		if (!saveOdtBuffer(odtIndex)) {
+	private int getAndUpdateFreeDescriptorIndex() {
+		return _descriptors.allocate();
+	}
+	
+	private int allocateFreeBlock(int goal) {
+		int dataBlockIndex = _bitmap.allocate(goal);
+		if (dataBlockIndex == ERROR_INDEX) {
+			return DescriptorTable.NO_BLOCK;
+		}
+		return dataBlockIndex;
+	}
+	
+	private int getGoalBlock(int previousBlockIndex) {
+		if (previousBlockIndex == DescriptorTable.NO_BLOCK) {
+			return ERROR_INDEX;
+		}
+		return previousBlockIndex + 1;
+	}
+	
+	/**
+	 * Gives every missing block among the first blockNum of the descriptor a
+	 * data block, as one run after the last block already allocated when the
+	 * disk has one.
+	 * @param descriptorIndex
+	 * @param blockNum
+	 * @return false if the disk cannot hold them
+	 */
+	private boolean reserveBlocks(int descriptorIndex, int blockNum) {
+		int missing = 0;
+		int goal = ERROR_INDEX;
+		for (int i = 0; i < blockNum; i++) {
+			int dataBlockIndex = lookupFileBlock(descriptorIndex, i);
+			if (dataBlockIndex == DescriptorTable.NO_BLOCK) {
+				missing++;
+			} else if (missing == 0) {
+				goal = getGoalBlock(dataBlockIndex);
+			}
+		}
+		
+		if (missing == 0) {
+			return true;
+		}
+		
+		int indexBlocks = countMissingIndexBlocks(descriptorIndex, blockNum);
+		if (indexBlocks == ERROR_INDEX) {
 			return false;
+		} else if (missing + indexBlocks > _bitmap.getFreeBlocksNumber()) {
+			return false;
+		}
+		
+		int runStart = _bitmap.findRun(missing, goal);
+		int runEnd = runStart;
+		if (runStart != ERROR_INDEX) {
+			runEnd = runStart + missing;
+			_bitmap.setRun(runStart, missing);
 		}
 		
-		_openFileTable[odtIndex].freeOpenFileRow();
+		for (int i = 0; i < blockNum; i++) {
+			int dataBlockIndex = lookupFileBlock(descriptorIndex, i);
+			if (dataBlockIndex == DescriptorTable.NO_BLOCK) {
+				if (runStart != runEnd) {
+					dataBlockIndex = runStart++;
+				} else {
+					dataBlockIndex = allocateFreeBlock(goal);
+				}
+				
+				if (dataBlockIndex == DescriptorTable.NO_BLOCK) {
+					return false;
+				} else if (!installFileBlock(descriptorIndex, i, dataBlockIndex)) {
+					//the rest of the run is not owned by the file yet
+					removeBitInBitmap(dataBlockIndex);
+					for (int j = runStart; j < runEnd; j++) {
+						removeBitInBitmap(j);
+					}
+					return false;
+				}
+			}
+			goal = getGoalBlock(dataBlockIndex);
+		}
 		return true;
 	}
-
-	private boolean saveOdtBuffer(int odtIndex) {
-		if (odtIndex < 0 || odtIndex >= _openFileTable.length) {
-			return false;
-		} else if (_openFileTable[odtIndex].isFree()) {
-			return true;
-		} else if (_openFileTable[odtIndex].hasNoBlock()) {
-			return true;
+	
+	/**
+	 * @param descriptorIndex
+	 * @param blockNum
+	 * @return the number of index blocks the first blockNum blocks of the
+	 * descriptor need and do not have yet, or ERROR_INDEX
+	 */
+	private int countMissingIndexBlocks(int descriptorIndex, int blockNum) {
+		int pointersPerBlock = _indexBlocks.getPointersPerBlock();
+		int count = 0;
+		
+		int indirect = _descriptors.getBlock(descriptorIndex, DescriptorTable.INDIRECT_POINTER);
+		blockNum -= DescriptorTable.DIRECT_POINTER_NUMBER;
+		if (blockNum > 0 && indirect == DescriptorTable.NO_BLOCK) {
+			count++;
 		}
 		
-		int descriptorIndex = _openFileTable[odtIndex].getDescriptorIndex();
-		int fileLength = _openFileTable[odtIndex].getFileLength();
-		int blockIndex = _openFileTable[odtIndex].getCurrentBlockIndex();
-		byte[] block = _openFileTable[odtIndex].getBuffer();
-				
-		if (!updateFileLengthInDescriptor(descriptorIndex, fileLength)) {
-			return false;
+		blockNum -= pointersPerBlock;
+		if (blockNum <= 0) {
+			return count;
 		}
-
+		
+		int doubleIndirect = _descriptors.getBlock(descriptorIndex, 
+												   DescriptorTable.DOUBLE_INDIRECT_POINTER);
+		int slotNumber = (blockNum + pointersPerBlock - 1) / pointersPerBlock;
+		if (doubleIndirect == DescriptorTable.NO_BLOCK) {
+			return count + 1 + slotNumber;
+		}
+		
 		try {
-			_iosystem.write_block(blockIndex, block);
+			for (int slot = 0; slot < slotNumber; slot++) {
+				if (_indexBlocks.get(_cache, _packMem, doubleIndirect, slot) == 
+					DescriptorTable.NO_BLOCK) {
+					count++;
+				}
+			}
 		} catch (LDiskOutOfBoundaryException e) {
-			return false;
+			return ERROR_INDEX;
 		}
-		return true;
+		return count;
 	}
 
-	private boolean updateFileLengthInDescriptor(int descriptorIndex,
-			int fileLength) {
-		int position = _descriptorPositions[descriptorIndex].getBlockPosition();
-		int blockIndex = _descriptorPositions[descriptorIndex].getBlockIndex();
-		byte[] descriptor = null;
+	/**
+	 * Creates a file or directory entry under an existing directory.
+	 * @param path
+	 * @param isDirectory
+	 * @return
+	 */
+	private boolean createEntry(String path, boolean isDirectory) {
+		if (path == null) {
+			return false;
+		} else if (_openFileTable[FILE_SYSTEM_INDEX].isFree()) {
+			return false;
+		}
 		
-		try {
-			descriptor = _iosystem.read_block(blockIndex);
-		} catch (LDiskOutOfBoundaryException e1) {
+		int nameStart = getNameStart(path);
+		int parentIndex = lookupDirectory(path, nameStart - 1);
+		if (parentIndex == ERROR_INDEX) {
+			return false;
+		}
+		
+		int packedName = packFilename(path, nameStart, path.length());
+		if (packedName == NO_PACKED_NAME) {
+			return false;
+		} else if (lookupEntry(parentIndex, packedName) != ERROR_INDEX) {
+			return false;
+		} else if (!selectDirectory(parentIndex)) {
+			return false;
+		} else if (_directoryEntriesNumber >= _maxFileNum) {
 			return false;
 		}
 		
-		if (descriptor == null) {
+		int freeDescriptorIndex = getAndUpdateFreeDescriptorIndex();
+		if (freeDescriptorIndex == ERROR_INDEX) {
 			return false;
+		} else if (isDirectory) {
+			_descriptors.setDirectory(freeDescriptorIndex);
 		}
 		
-		_packMem.setMemory(descriptor);	
-		_packMem.pack(fileLength, position);
-		descriptor = _packMem.getMemory();
-		
-		try {
-			_iosystem.write_block(blockIndex, descriptor);
-		} catch (LDiskOutOfBoundaryException e1) {
+		if (!insertDirectoryEntry(packedName, freeDescriptorIndex)) {
+			clearDescriptor(freeDescriptorIndex);
 			return false;
 		}
+		
+		_dentries.put(parentIndex, packedName, freeDescriptorIndex);
 		return true;
 	}
 	
-	private int getFileLengthInDescriptor(int descriptorIndex) {
-		int position = _descriptorPositions[descriptorIndex].getBlockPosition();
-		int position2 = position + PackableMemory.BYTE_PER_INT;
-		int blockIndex = _descriptorPositions[descriptorIndex].getBlockIndex();
-		byte[] descriptor = null;
-		int fileLength;
-		
-		try {
-			descriptor = _iosystem.read_block(blockIndex);
-		} catch (LDiskOutOfBoundaryException e1) {
-			return ERROR_INDEX;
+	private int getBlockNumberOfFile(int descriptorIndex) {
+		if (_descriptors.isInline(descriptorIndex)) {
+			return 0;
 		}
 		
-		if (descriptor == null) {
-			return ERROR_INDEX;
+		long blockLength = _geometry.getBlockLength();
+		return (int) ((_descriptors.getLength(descriptorIndex) + blockLength - 1) / blockLength);
+	}
+	
+	private boolean isDirectory(int descriptorIndex) {
+		return descriptorIndex == FILE_SYSTEM_INDEX || _descriptors.isDirectory(descriptorIndex);
+	}
+	
+	/**
+	 * @param path
+	 * @return where the last name of the path starts
+	 */
+	private int getNameStart(String path) {
+		return path.lastIndexOf(PATH_SEPARATOR) + 1;
+	}
+	
+	/**
+	 * Walks the directories named by the path up to end, starting from the
+	 * root whether or not the path starts with a separator.
+	 * @param path
+	 * @param end
+	 * @return the descriptor of the last directory, or ERROR_INDEX
+	 */
+	private int lookupDirectory(String path, int end) {
+		int directoryIndex = FILE_SYSTEM_INDEX;
+		int start = 0;
+		if (!path.isEmpty() && path.charAt(0) == PATH_SEPARATOR) {
+			start = 1;
 		}
-		_packMem.setMemory(descriptor);	
-		fileLength = _packMem.unpack(position);
-		int firstBlock = _packMem.unpack(position2);
 		
-		if (fileLength == 1 && firstBlock == 1) {
-			fileLength = 0;
-			_packMem.pack(fileLength, position);
-			descriptor = _packMem.getMemory();
+		while (start < end) {
+			int separator = path.indexOf(PATH_SEPARATOR, start);
+			if (separator < 0 || separator > end) {
+				separator = end;
+			}
 			
-			try {
-				_iosystem.write_block(blockIndex, descriptor);
-			} catch (LDiskOutOfBoundaryException e1) {
+			int packedName = packFilename(path, start, separator);
+			directoryIndex = lookupEntry(directoryIndex, packedName);
+			if (directoryIndex == ERROR_INDEX) {
+				return ERROR_INDEX;
+			} else if (!isDirectory(directoryIndex)) {
 				return ERROR_INDEX;
 			}
+			start = separator + 1;
 		}
-		
-		return fileLength;
+		return directoryIndex;
 	}
-
-	private boolean clearDescriptor(int descriptorIndex) {
-		int position = _descriptorPositions[descriptorIndex].getBlockPosition();
-		int[] positions = new int[BLOCK_PER_DESCRIPTOR];
-		positions[0] = position + PackableMemory.BYTE_PER_INT;
-		for (int i = 1; i < positions.length; i++) {
-			positions[i] = positions[i - 1] + PackableMemory.BYTE_PER_INT;
+	
+	/**
+	 * Looks a name up in a directory through the dentry cache, which also
+	 * remembers names that are not there.
+	 * @param directoryIndex
+	 * @param packedName
+	 * @return the descriptor the name stands for, or ERROR_INDEX
+	 */
+	private int lookupEntry(int directoryIndex, int packedName) {
+		if (packedName == NO_PACKED_NAME) {
+			return ERROR_INDEX;
 		}
 		
-		int blockIndex = _descriptorPositions[descriptorIndex].getBlockIndex();
-		byte[] descriptor = null;
-		
-		try {
-			descriptor = _iosystem.read_block(blockIndex);
-		} catch (LDiskOutOfBoundaryException e1) {
-			return false;
+		int descriptorIndex = _dentries.get(directoryIndex, packedName);
+		if (descriptorIndex != DentryCache.NOT_CACHED) {
+			return descriptorIndex;
+		} else if (!selectDirectory(directoryIndex)) {
+			return ERROR_INDEX;
 		}
 		
-		if (descriptor == null) {
+		descriptorIndex = getDescriptorIndexOfFile(packedName);
+		_dentries.put(directoryIndex, packedName, descriptorIndex);
+		return descriptorIndex;
+	}
+	
+	/**
+	 * Makes a directory the one the helpers below work on, writing back the
+	 * header of the previous one. Only the header is read; entries are read
+	 * as they are probed or listed. A new directory gets its empty table here.
+	 * @param directoryIndex
+	 * @return
+	 */
+	private boolean selectDirectory(int directoryIndex) {
+		if (directoryIndex == _directoryIndex) {
+			return true;
+		} else if (!storeDirectoryHeader()) {
 			return false;
 		}
-		_packMem.setMemory(descriptor);	
-		int fileLength = _packMem.unpack(position);
 		
-		int[] blocks = new int[BLOCK_PER_DESCRIPTOR];
+		_directoryIndex = directoryIndex;
+		_directoryEntriesNumber = 0;
+		_directoryDeletedNumber = 0;
+		_isDirectoryHeaderDirty = false;
 		
-		for (int i = 0; i < blocks.length; i++) {
-			blocks[i] = _packMem.unpack(positions[i]);
-			if (blocks[i] != 1) {
-				if (!removeBitInBitmap(blocks[i])) {
-					return false;
-				}
-				blocks[i] = 1;
-				_packMem.pack(blocks[i], positions[i]);
-			}
+		boolean isLoaded = getFileLengthInDescriptor(directoryIndex) == 0 ? 
+						   resizeDirectory(1) : loadDirectoryHeader();
+		if (!isLoaded) {
+			_directoryIndex = ERROR_INDEX;
 		}
+		return isLoaded;
+	}
 		
-		fileLength = 1;
-		_packMem.pack(fileLength, position);
-		descriptor = _packMem.getMemory();
-		
-		try {
-			_iosystem.write_block(blockIndex, descriptor);
-		} catch (LDiskOutOfBoundaryException e1) {
+	private boolean loadDirectoryHeader() {
+		int position = loadDirectoryPosition(DIRECTORY_HEADER_SLOT);
+		if (position == ERROR_INDEX) {
 			return false;
 		}
-		
+		_directoryEntriesNumber = _packMem.unpack(position);
+		_directoryDeletedNumber = _packMem.unpack(position + PackableMemory.BYTE_PER_INT);
 		return true;
 	}
 	
-	private boolean removeBitInBitmap(int dataBlockIndex) {
-		if (dataBlockIndex < 0) {
-			return false;
+	/**
+	 * @param packedName
+	 * @return the descriptor index of the file, or ERROR_INDEX
+	 */
+	private int getDescriptorIndexOfFile(int packedName) {
+		if (packedName == NO_PACKED_NAME) {
+			return ERROR_INDEX;
 		}
 		
-		byte[] bitmap = null;
-		try {
-			bitmap = _iosystem.read_block(BITMAP_BLOCK_INDEX);
-		} catch (LDiskOutOfBoundaryException e1) {
-			return false;
+		int slot = findDirectorySlot(packedName);
+		if (slot == ERROR_INDEX) {
+			return ERROR_INDEX;
 		}
-		_packMem.setMemory(bitmap);
-		
-		int firstValMax = BITS_PER_INTEGER;
-		int secondValMax = BITS_PER_INTEGER * 2;
-		
-		int loc = 0;
 		
-		if (dataBlockIndex <= firstValMax){
-			int val1 = _packMem.unpack(loc);
-			val1 &= ~_mask[dataBlockIndex];
-			_packMem.pack(val1, loc);
-		} else if (dataBlockIndex <= secondValMax) {
-			loc += PackableMemory.BYTE_PER_INT;
-			int val2 = _packMem.unpack(loc);
-			val2 &= ~_mask[dataBlockIndex];
-			_packMem.pack(val2, loc);
-		} else {
-			return false;
+		int position = loadDirectorySlot(slot);
+		if (position == ERROR_INDEX) {
+			return ERROR_INDEX;
 		}
-		
-		
-		bitmap = _packMem.getMemory();
-		try {
-			_iosystem.write_block(BITMAP_BLOCK_INDEX, bitmap);
-		} catch (LDiskOutOfBoundaryException e) {
+		return _packMem.unpack(position + PackableMemory.BYTE_PER_INT);
+	}
+	
+	private boolean storeDirectoryHeader() {
+		if (_directoryIndex == ERROR_INDEX || !_isDirectoryHeaderDirty) {
+			return true;
+		} else if (!writeDirectoryPosition(DIRECTORY_HEADER_SLOT, 
+										   _directoryEntriesNumber, 
+										   _directoryDeletedNumber)) {
 			return false;
 		}
-
-		return true;
 		
+		_isDirectoryHeaderDirty = false;
+		return true;
 	}
 	
+	/*
+	 * A directory file is a header slot followed by an open-addressing hash
+	 * table of 8-byte slots: the name packed into an int, then the
+	 * descriptor index. The header holds the numbers of entries and deleted
+	 * slots and is written when the disk is saved. A slot is empty when the
+	 * descriptor index is 0 and deleted when it is -1. Names are probed
+	 * linearly from their home slot, so an insert, delete or lookup reads one
+	 * block, or two when the probe crosses a block end. The table doubles
+	 * once it is three quarters full. The helpers below work on the directory
+	 * picked by selectDirectory().
+	 */
 	
-	private boolean updateFileLengthToOft(int openFileTableIndex) {
-		int index = _openFileTable[openFileTableIndex].getDescriptorIndex();
-		int fileLength = getFileLengthInDescriptor(index);
+	private int getDirectoryBlockNumber() {
+		return (int) (_descriptors.getLength(_directoryIndex) / _geometry.getBlockLength());
+	}
+	
+	private int getDirectorySlotNumber() {
+		return (int) (_descriptors.getLength(_directoryIndex) / _directoryEntrySize) - 
+			   DIRECTORY_TABLE_START;
+	}
+	
+	private int getDirectoryHomeSlot(int packedName, int slotNumber) {
+		int hash = packedName * 0x9e3779b9;
+		hash ^= hash >>> (Integer.SIZE / 2);
+		return (hash & Integer.MAX_VALUE) % slotNumber;
+	}
+	
+	/**
+	 * @param packedName
+	 * @return the slot holding the name, or ERROR_INDEX
+	 */
+	private int findDirectorySlot(int packedName) {
+		int slotNumber = getDirectorySlotNumber();
+		int slot = getDirectoryHomeSlot(packedName, slotNumber);
 		
-		if (fileLength == ERROR_INDEX) {
-			return false;
+		for (int i = 0; i < slotNumber; i++) {
+			int position = loadDirectorySlot(slot);
+			if (position == ERROR_INDEX) {
+				return ERROR_INDEX;
+			}
+			
+			int descriptorIndex = _packMem.unpack(position + PackableMemory.BYTE_PER_INT);
+			if (descriptorIndex == EMPTY_DIRECTORY_SLOT) {
+				return ERROR_INDEX;
+			} else if (descriptorIndex != DELETED_DIRECTORY_SLOT && 
+					   _packMem.unpack(position) == packedName) {
+				return slot;
+			}
+			slot = (slot + 1) % slotNumber;
 		}
-		
-		_openFileTable[openFileTableIndex].setFileLength(fileLength);
-		return true;
+		return ERROR_INDEX;
 	}
-
-	private boolean prepareOft(int openFileTableIndex) {
-		if (_openFileTable[openFileTableIndex].hasNoBlock()) {
-			if (!updateFileLengthToOft(openFileTableIndex)) {
-				return false;
+	
+	private boolean insertDirectoryEntry(int packedName, int descriptorIndex) {
+		int slotNumber = getDirectorySlotNumber();
+		int usedNumber = _directoryEntriesNumber + _directoryDeletedNumber + 1;
+		
+		if (usedNumber * DIRECTORY_LOAD_DENOMINATOR > slotNumber * DIRECTORY_LOAD_NUMERATOR) {
+			int blockNum = getDirectoryBlockNumber();
+			int newBlockNum = blockNum;
+			if ((_directoryEntriesNumber + 1) * DIRECTORY_LOAD_DENOMINATOR > 
+				slotNumber * DIRECTORY_LOAD_NUMERATOR &&
+				(long) blockNum * 2 * _geometry.getBlockLength() <= _maxFileLength) {
+				newBlockNum = blockNum * 2;
 			}
-			if (!updateOdtBufferAndBlock(openFileTableIndex)) {
-				return false;
+			
+			if (newBlockNum != blockNum || _directoryDeletedNumber > 0) {
+				if (!resizeDirectory(newBlockNum)) {
+					return false;
+				}
+				slotNumber = getDirectorySlotNumber();
 			}
-		} else if (_openFileTable[openFileTableIndex].isFull()) {			
-			if (!saveOdtBuffer(openFileTableIndex)) {
-				return false;
-			} 
-			if (!updateOdtBufferAndBlock(openFileTableIndex)) {
+		}
+		
+		int slot = getDirectoryHomeSlot(packedName, slotNumber);
+		for (int i = 0; i < slotNumber; i++) {
+			int position = loadDirectorySlot(slot);
+			if (position == ERROR_INDEX) {
 				return false;
 			}
+			
+			int slotDescriptorIndex = _packMem.unpack(position + PackableMemory.BYTE_PER_INT);
+			if (slotDescriptorIndex == EMPTY_DIRECTORY_SLOT || 
+				slotDescriptorIndex == DELETED_DIRECTORY_SLOT) {
+				if (!writeDirectorySlot(slot, packedName, descriptorIndex)) {
+					return false;
+				}
+				
+				if (slotDescriptorIndex == DELETED_DIRECTORY_SLOT) {
+					_directoryDeletedNumber--;
+				}
+				_directoryEntriesNumber++;
+				_isDirectoryHeaderDirty = true;
+				return true;
+			}
+			slot = (slot + 1) % slotNumber;
 		}
-		return true;
+		return false;
 	}
-
-	private boolean updateOdtBufferAndBlock(int openFileTableIndex) {
-		int descriptorIndex = _openFileTable[openFileTableIndex].getDescriptorIndex();
-		int curPosition = _openFileTable[openFileTableIndex].getCurrentPosition();
-		curPosition /= IOSystemCore.BLOCK_LENGTH;
-		curPosition += 1;
-		
-		
-		
-		int blockIndex = getCurrentBlockFromDescriptor(descriptorIndex, curPosition);
-		
-		if (blockIndex == 1) {
-			return false;
-		}
-		
-		_openFileTable[openFileTableIndex].setCurrentBlockIndex(blockIndex);
-
-		byte[] buffer = null;
-		try {
-			buffer = _iosystem.read_block(blockIndex);
-		} catch (LDiskOutOfBoundaryException e) {
+	
+	private boolean removeDirectoryEntry(int slot) {
+		if (!writeDirectorySlot(slot, 0, DELETED_DIRECTORY_SLOT)) {
 			return false;
 		}
 		
-		if (buffer == null) {
-			return false;
-		}
-		_openFileTable[openFileTableIndex].setBuffer(buffer);
+		_directoryEntriesNumber--;
+		_directoryDeletedNumber++;
+		_isDirectoryHeaderDirty = true;
 		return true;
 	}
-
-	private int getCurrentBlockFromDescriptor(int descriptorIndex,
-			int curPosition) {
-		int blockIndex = _descriptorPositions[descriptorIndex].getBlockIndex();
-		byte[] descriptor = null;
-		
-		try {
-			descriptor = _iosystem.read_block(blockIndex);
-		} catch (LDiskOutOfBoundaryException e1) {
-			return 1;
-		}
-		
-		if (descriptor == null) {
-			return 1;
-		}
-		
-		int position = _descriptorPositions[descriptorIndex].getBlockPosition();
-		position += curPosition * PackableMemory.BYTE_PER_INT;
-		
-		if (position >= IOSystemCore.BLOCK_LENGTH) {
-			return 1;
+	
+	/**
+	 * Rebuilds the directory table over the given number of blocks, dropping
+	 * deleted slots. The table keeps its old blocks and gains new ones at
+	 * the end when it grows.
+	 * @param blockNum
+	 * @return false if the table could not be rebuilt
+	 */
+	private boolean resizeDirectory(int blockNum) {
+		int oldSlotNumber = Math.max(getDirectorySlotNumber(), 0);
+		int[] packedNames = new int[_directoryEntriesNumber];
+		int[] descriptorIndexes = new int[_directoryEntriesNumber];
+		int entriesNumber = 0;
+		
+		for (int slot = 0; slot < oldSlotNumber; slot++) {
+			int position = loadDirectorySlot(slot);
+			if (position == ERROR_INDEX) {
+				return false;
+			}
+			
+			int descriptorIndex = _packMem.unpack(position + PackableMemory.BYTE_PER_INT);
+			if (descriptorIndex != EMPTY_DIRECTORY_SLOT && 
+				descriptorIndex != DELETED_DIRECTORY_SLOT) {
+				packedNames[entriesNumber] = _packMem.unpack(position);
+				descriptorIndexes[entriesNumber] = descriptorIndex;
+				entriesNumber++;
+			}
 		}
 		
-		_packMem.setMemory(descriptor);
-		
-		int dataBlockIndex = _packMem.unpack(position);
-		if (dataBlockIndex == 1) {
-			dataBlockIndex = allocateFreeBlock();
-		} else {
-			return dataBlockIndex;
+		int[] blocks = new int[blockNum];
+		for (int i = 0; i < blockNum; i++) {
+			blocks[i] = getCurrentBlockFromDescriptor(_directoryIndex, i + 1);
+			if (blocks[i] == DescriptorTable.NO_BLOCK) {
+				return false;
+			}
 		}
 		
-		if (dataBlockIndex == 1) {
-			return 1;
+		_directoryBlockIndex = ERROR_INDEX;
+		Arrays.fill(_directoryBlock, (byte) 0);
+		try {
+			for (int i = 0; i < blockNum; i++) {
+				_cache.write_block(blocks[i], _directoryBlock, 0);
+			}
+		} catch (LDiskOutOfBoundaryException e) {
+			return false;
 		}
 		
-		_packMem.setMemory(descriptor);
-		_packMem.pack(dataBlockIndex, position);
-		descriptor = _packMem.getMemory();
+		_descriptors.setLength(_directoryIndex, (long) blockNum * _geometry.getBlockLength());
+		_directoryEntriesNumber = 0;
+		_directoryDeletedNumber = 0;
+		_isDirectoryHeaderDirty = true;
 		
-		try {
-			_iosystem.write_block(blockIndex, descriptor);
-		} catch (LDiskOutOfBoundaryException e1) {
-			return 1;
-		}
-		return dataBlockIndex;
-	}
-
-	private int getAndUpdateFreeDescriptorIndex() {
-		byte[] descriptor = null;
-		int blockIndex;
-		int position;
-		int freeDescriptorIndex = -1;
-		for (int i = 1; i < _descriptorPositions.length; i++) {
-			blockIndex = _descriptorPositions[i].getBlockIndex();
-			position = _descriptorPositions[i].getBlockPosition();
-			try {
-				descriptor = _iosystem.read_block(blockIndex);
-			} catch (LDiskOutOfBoundaryException e1) {
-				return -1;
-			}
-			int position2 = position + PackableMemory.BYTE_PER_INT;
-			
-			_packMem.setMemory(descriptor);
-			
-			int fileLength = _packMem.unpack(position);
-			int firstBlock = _packMem.unpack(position2);
-			if (fileLength == 1 && firstBlock == 1) {
-				fileLength = 0;
-				_packMem.pack(fileLength, position);
-				descriptor = _packMem.getMemory();
-				freeDescriptorIndex = i;
-				try {
-					_iosystem.write_block(blockIndex, descriptor);
-				} catch (LDiskOutOfBoundaryException e1) {
-					return -1;
-				}
-				return freeDescriptorIndex;
+		for (int i = 0; i < entriesNumber; i++) {
+			if (!insertDirectoryEntry(packedNames[i], descriptorIndexes[i])) {
+				return false;
 			}
 		}
-		return freeDescriptorIndex;
+		return true;
 	}
-
 	
+	/**
+	 * Brings the block holding a directory table slot into _directoryBlock
+	 * and points _packMem at it.
+	 * @param slot
+	 * @return the position of the slot in _directoryBlock, or ERROR_INDEX
+	 */
+	private int loadDirectorySlot(int slot) {
+		return loadDirectoryPosition(slot + DIRECTORY_TABLE_START);
+	}
 	
-	private int allocateFreeBlock() {
-		int dataBlockIndex = 1;
-		byte[] bitmap = null;
-		try {
-			bitmap = _iosystem.read_block(BITMAP_BLOCK_INDEX);
-		} catch (LDiskOutOfBoundaryException e1) {
-			return 1;
-		}
-		_packMem.setMemory(bitmap);
-		
-		int loc = 0;
-		int val1 = _packMem.unpack(loc);
-		
-		boolean isDone = false;
-		for (int i = DATA_BLOCK_START; i < BITS_PER_INTEGER; i++) {
-			int check = val1 & _mask[i];
-			if (check == 0) {
-				isDone = true;
-				dataBlockIndex = i;
-				val1 |= _mask[i];
-				break;
-			}
-		}
-		
-		if (!isDone) {
-			loc += PackableMemory.BYTE_PER_INT;
-			int val2 = _packMem.unpack(loc);
-			for (int i = 0; i < BITS_PER_INTEGER; i++) {
-				int index = i + BITS_PER_INTEGER;
-				int check = val2 & _mask[index];
-				if (check == 0) {
-					isDone = true;
-					dataBlockIndex = index;
-					val2 |= _mask[index];
-					break;
-				}
-			}
-			if (isDone) {
-				_packMem.pack(val2, loc);
-			}
-		} else {
-			_packMem.pack(val1, loc);
+	private boolean writeDirectorySlot(int slot, int packedName, int descriptorIndex) {
+		return writeDirectoryPosition(slot + DIRECTORY_TABLE_START, packedName, descriptorIndex);
+	}
+	
+	private int loadDirectoryPosition(int fileSlot) {
+		int slotsPerBlock = _geometry.getBlockLength() / _directoryEntrySize;
+		int blockIndex = lookupFileBlock(_directoryIndex, fileSlot / slotsPerBlock);
+		if (blockIndex == DescriptorTable.NO_BLOCK) {
+			return ERROR_INDEX;
 		}
 		
-		if (isDone) {
-			bitmap = _packMem.getMemory();
+		if (blockIndex != _directoryBlockIndex) {
 			try {
-				_iosystem.write_block(BITMAP_BLOCK_INDEX, bitmap);
+				_cache.read_block(blockIndex, _directoryBlock, 0);
 			} catch (LDiskOutOfBoundaryException e) {
-				return 1;
+				_directoryBlockIndex = ERROR_INDEX;
+				return ERROR_INDEX;
 			}
+			_directoryBlockIndex = blockIndex;
 		}
-		return dataBlockIndex;
+		
+		_packMem.setMemory(_directoryBlock);
+		return (fileSlot % slotsPerBlock) * _directoryEntrySize;
 	}
-
-	private boolean initializeDirectory(int index) {
-		if (!prepareOft(index)) {
+	
+	private boolean writeDirectoryPosition(int fileSlot, int first, int second) {
+		int position = loadDirectoryPosition(fileSlot);
+		if (position == ERROR_INDEX) {
 			return false;
 		}
 		
-		int systemFileLength = _openFileTable[index].getFileLength();
-		if (readOftRow(index, systemFileLength, true) == null) {
+		_packMem.pack(first, position);
+		_packMem.pack(second, position + PackableMemory.BYTE_PER_INT);
+		
+		try {
+			_cache.write_block(_directoryBlockIndex, _directoryBlock, 0);
+		} catch (LDiskOutOfBoundaryException e) {
 			return false;
 		}
 		return true;
 	}
 
 	/**
-	 * This method no longer support reading non-directory file
-	 * @param index
+	 * Packs the name between start and end of a path into an int the way a
+	 * directory entry stores it, without encoding it to bytes when it is
+	 * plain ASCII.
+	 * @param path
+	 * @param start
 	 * @param end
-	 * @param isDirectory
-	 * @return
+	 * @return the packed name, or NO_PACKED_NAME if it is empty or takes
+	 * more than four bytes
 	 */
-	private String readOftRow(int index, int end, boolean isDirectory) {
-		if (!isDirectory) {
-			return null;
-		}
-		
-		StringBuffer readBuffer = new StringBuffer("");
-		
-		int bufferLength = _openFileTable[index].getBufferLength();
-		int startPoint = _openFileTable[index].getCurrentPosition();
-		end = startPoint + end;
-		
-		int blockNum = (end) / bufferLength;
-		if (blockNum < BLOCK_PER_DESCRIPTOR) {
-			blockNum++;
-		} else if (blockNum > BLOCK_PER_DESCRIPTOR) {
-			return null;
-		} 
-		
-		for (int i = 1; i <= blockNum; i++) {
-			int length = bufferLength;
-			if (i == blockNum) {
-				length = end - (blockNum - 1) * bufferLength;
-			}
-			
-			if (length <= startPoint) {
-				startPoint -= length;
-				continue;
-			}
-			
-			
-			int blockIndex = getCurrentBlockFromDescriptor(index, i);
-			if (blockIndex == 1) {
-				return null;
-			}
-			
-			try {
-				byte[] fileBlock = _iosystem.read_block(blockIndex);
-				
-				_packMem.setMemory(fileBlock);
-				Vector <Byte> readBytes = new Vector <Byte>(length);
-				int pos = startPoint;
-				while (pos < length) {
-					if (isDirectory) {
-						String readString = readForDirectory(fileBlock, pos);
-						readBuffer.append(readString);
-						pos += PackableMemory.BYTE_PER_INT * INTEGER_PER_FILE_DIRECTORY;
-					} else {
-						readBytes.add(fileBlock[pos]);
-						pos++;
-					}
-					
+	private int packFilename(String path, int start, int end) {
+		int length = end - start;
+		if (length <= 0 || length > MAX_FILENAME_LENGTH) {
+			return NO_PACKED_NAME;
+		}
+		
+		int packedName = 0;
+		for (int i = 0; i < MAX_FILENAME_LENGTH; i++) {
+			int nameByte = FILENAME_PADDING;
+			if (i < length) {
+				char c = path.charAt(start + i);
+				if (c > MAX_SINGLE_BYTE_CHAR) {
+					return packEncodedFilename(path.substring(start, end));
 				}
-				
-				if (!isDirectory) {
-					byte[] readBytesArray = new byte[readBytes.size()];
-					
-					for (int j = 0; j < readBytes.size(); j++) {
-						readBytesArray[j] = readBytes.get(j).byteValue();
-					}
-					readBuffer.append(new String(readBytesArray));
-				}
-				
-				_openFileTable[index].setCurrentBlockIndex(blockIndex);
-				_openFileTable[index].setBuffer(fileBlock);
-				startPoint = 0;
-			} catch (LDiskOutOfBoundaryException e) {
-				return null;
+				nameByte = c;
 			}
+			packedName = packedName << PackableMemory.BIT_PER_BYTE | nameByte;
 		}
-		_openFileTable[index].setCurrentPosition(end);
-		return readBuffer.toString();
+		return packedName;
 	}
-
-	private String readForDirectory(byte[] fileBlock, int pos) {
-		byte[] saveBytes = new byte[PackableMemory.BYTE_PER_INT];
-		
-		for (int j = 0; j < saveBytes.length; j++) {
-			saveBytes[j] = fileBlock[pos];
-			pos++;
+	
+	private int packEncodedFilename(String filename) {
+		if (filename.getBytes(Charset.forName("UTF-8")).length > MAX_FILENAME_LENGTH) {
+			return NO_PACKED_NAME;
 		}
 		
-		String directoryFilename = extractFilename(saveBytes);
-		int descriptorIndex = _packMem.unpack(pos);
-		
-		_directoryFileNames.add(directoryFilename);
-		_filenameAndIndexMap.put(directoryFilename, descriptorIndex);
+		byte[] saveBytes = retrieveDirEntryByteArray(filename);
+		_packMem.setMemory(saveBytes);
+		return _packMem.unpack(0);
+	}
+
+	private String unpackFilename(int packedName) {
+		byte[] saveBytes = _directoryEntry;
+		_packMem.setMemory(saveBytes);
+		_packMem.pack(packedName, 0);
 		
-		return directoryFilename;
+		byte[] nameBytes = new byte[PackableMemory.BYTE_PER_INT];
+		System.arraycopy(saveBytes, 0, nameBytes, 0, nameBytes.length);
+		return extractFilename(nameBytes);
 	}
 
 	private String extractFilename(byte[] saveBytes) {
@@ -1154,11 +2542,10 @@ public class FileSystemCore {
 		return output;
 	}
 
-	private byte[] retrieveDirEntryByteArray(String filename,
-			int descriptorIndex) {
+	private byte[] retrieveDirEntryByteArray(String filename) {
 		byte[] bytes = filename.getBytes(Charset.forName("UTF-8"));
 		
-		byte[] saveBytes = new byte[_directoryEntrySize];
+		byte[] saveBytes = _directoryEntry;
 		
 		for (int i = 0; i < saveBytes.length; i++) {
 			saveBytes[i] = -1;
@@ -1167,74 +2554,35 @@ public class FileSystemCore {
 		for (int i = 0; i < bytes.length; i++) {
 			saveBytes[i] = bytes[i];
 		}
-		int position = PackableMemory.BYTE_PER_INT;
-		_packMem.setMemory(saveBytes);
-		_packMem.pack(descriptorIndex, position);
-		saveBytes = _packMem.getMemory();
 		return saveBytes;
 	}
-
-	
-	private boolean updateDirectoryBuffer(int openFileTableIndex, int start,
-			int length, byte[] readBytes, byte[] saveBytes) {
-		byte[] buffer = _openFileTable[openFileTableIndex].getBuffer();
-		
-		while (true) {
-			boolean isReplacable = true;
-			for (int i = start; i < start + length; i++) {
-				if (buffer[i % IOSystemCore.BLOCK_LENGTH] != 
-					readBytes[i % (PackableMemory.BYTE_PER_INT * 
-							INTEGER_PER_FILE_DIRECTORY)]) {
-					isReplacable = false;
-					break;
-				}
-			}
-						
-			if (isReplacable) {
-				int startPoint = 0;
-				if (!updateOftBuffer(openFileTableIndex, length, saveBytes, startPoint)) {
-					return false;
-				}
-				break;
-			}
-			start += length;
-			_openFileTable[openFileTableIndex].setCurrentPosition(start);
-						
-			if (!prepareOft(openFileTableIndex)) {
-				return false;
-			} else {
-				buffer = _openFileTable[openFileTableIndex].getBuffer();
-			}
-		}
-		return true;
-	}
 	
-	private boolean updateOftBuffer(int index, int count, byte[] writeBytes,
-			int start) {
-		int remaining = _openFileTable[index].updateBuffer(writeBytes, start);
+	private boolean updateOftBuffer(int index, byte[] writeBytes, int start, int count) {
+		int remaining = _openFileTable[index].updateBuffer(writeBytes, start, count);
 		
 		while (remaining > 0) {
-			if (!saveOdtBuffer(index)) {
+			if (!saveFullBuffer(index)) {
 				return false;
 			}
 			if (!prepareOft(index)) {
 				return false;
 			}
-			start = count - remaining;
-			remaining = _openFileTable[index].updateBuffer(writeBytes, start);
+			remaining = _openFileTable[index].updateBuffer(writeBytes, 
+														   start + count - remaining, 
+														   remaining);
 			
 		}
 		return true;
 	}
 
-	private boolean seek(int index, int pos) {
+	private boolean seek(int index, long pos) {
 		if (!prepareOft(index)) {
 			return false;
 		} else if (!saveOdtBuffer(index)) {
 			return false;
 		} 
 		
-		int prevPos = _openFileTable[index].getCurrentPosition();
+		long prevPos = _openFileTable[index].getCurrentPosition();
 		_openFileTable[index].setCurrentPosition(pos);
 		
 		if (!updateOdtBufferAndBlock(index)) {
@@ -0,0 +1,117 @@
+package filesystem;
+
+import java.util.Arrays;
+
+import iosystem.BlockCache;
+import iosystem.LDiskOutOfBoundaryException;
+
+/**
+ * Decoded copies of recently used index blocks, the single- and
+ * double-indirect pointer blocks of large files. Each index block maps to
+ * one frame by its block number. A frame is written back to the block cache
+ * when another index block takes it or when store() is called.
+ */
+class IndexBlockCache {
+	private static final int NO_FRAME_BLOCK = FileSystemCore.ERROR_INDEX;
+	
+	private int[][] _frames = null;
+	private int[] _frameBlocks = null;
+	private boolean[] _isDirty = null;
+	
+	private byte[] _block = null;
+	private int _pointersPerBlock;
+	
+	public IndexBlockCache(int blockLength, int capacity) {
+		_pointersPerBlock = blockLength / PackableMemory.BYTE_PER_INT;
+		_block = new byte[blockLength];
+		
+		_frames = new int[capacity][_pointersPerBlock];
+		_frameBlocks = new int[capacity];
+		_isDirty = new boolean[capacity];
+		Arrays.fill(_frameBlocks, NO_FRAME_BLOCK);
+	}
+	
+	public int getPointersPerBlock() {
+		return _pointersPerBlock;
+	}
+	
+	public int get(BlockCache cache, PackableMemory packMem, int blockIndex, int slot)
+			throws LDiskOutOfBoundaryException {
+		return _frames[getFrame(cache, packMem, blockIndex, true)][slot];
+	}
+	
+	public void set(BlockCache cache, PackableMemory packMem, int blockIndex, int slot,
+			int pointer) throws LDiskOutOfBoundaryException {
+		int frame = getFrame(cache, packMem, blockIndex, true);
+		_frames[frame][slot] = pointer;
+		_isDirty[frame] = true;
+	}
+	
+	/**
+	 * Starts a newly allocated index block with every pointer empty, without
+	 * reading what the block held before.
+	 * @param cache
+	 * @param packMem
+	 * @param blockIndex
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	public void format(BlockCache cache, PackableMemory packMem, int blockIndex)
+			throws LDiskOutOfBoundaryException {
+		int frame = getFrame(cache, packMem, blockIndex, false);
+		Arrays.fill(_frames[frame], DescriptorTable.NO_BLOCK);
+		_isDirty[frame] = true;
+	}
+	
+	/**
+	 * Forgets a freed index block, dropping any change not written back.
+	 * @param blockIndex
+	 */
+	public void release(int blockIndex) {
+		int frame = blockIndex % _frames.length;
+		if (_frameBlocks[frame] == blockIndex) {
+			_frameBlocks[frame] = NO_FRAME_BLOCK;
+			_isDirty[frame] = false;
+		}
+	}
+	
+	public void store(BlockCache cache, PackableMemory packMem) throws LDiskOutOfBoundaryException {
+		for (int i = 0; i < _frames.length; i++) {
+			if (_isDirty[i]) {
+				writeBack(cache, packMem, i);
+			}
+		}
+	}
+	
+	private int getFrame(BlockCache cache, PackableMemory packMem, int blockIndex,
+			boolean isReading) throws LDiskOutOfBoundaryException {
+		int frame = blockIndex % _frames.length;
+		if (_frameBlocks[frame] == blockIndex) {
+			return frame;
+		}
+		
+		if (_isDirty[frame]) {
+			writeBack(cache, packMem, frame);
+		}
+		_frameBlocks[frame] = NO_FRAME_BLOCK;
+		
+		if (isReading) {
+			cache.read_block(blockIndex, _block, 0);
+			packMem.setMemory(_block);
+			for (int i = 0; i < _pointersPerBlock; i++) {
+				_frames[frame][i] = packMem.unpack(i * PackableMemory.BYTE_PER_INT);
+			}
+		}
+		_frameBlocks[frame] = blockIndex;
+		return frame;
+	}
+	
+	private void writeBack(BlockCache cache, PackableMemory packMem, int frame)
+			throws LDiskOutOfBoundaryException {
+		packMem.setMemory(_block);
+		for (int i = 0; i < _pointersPerBlock; i++) {
+			packMem.pack(_frames[frame][i], i * PackableMemory.BYTE_PER_INT);
+		}
+		cache.write_block(_frameBlocks[frame], _block, 0);
+		_isDirty[frame] = false;
+	}
+}
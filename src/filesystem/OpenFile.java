@@ -0,0 +1,252 @@
+package filesystem;
+
+/**
+ * What the handles of one open file share: the block buffer, the length and
+ * the full blocks held back for writing. Only one handle works in the buffer
+ * at a time, the owner; another handle takes the buffer over once the owner
+ * has saved it.
+ */
+class OpenFile {
+	private int _descriptorIndex;
+	private byte[] _buffer = null;
+	private long _fileLength;
+	private int _currentBlockIndex;
+	private int _fileBlock;
+	private boolean _isDirty;
+	
+	private int _bufferLength;
+	private BufferPool _bufferPool = null;
+	
+	private OpenFileRow _owner = null;
+	private int _handlesNumber;
+	
+	private byte[][] _writeBehind = null;
+	private int[] _writeBehindBlocks = null;
+	private int _writeBehindNumber;
+	
+	private static final int NO_BLOCK_INDEX = -1;
+	
+	/**
+	 * @param descriptorIndex
+	 * @param bufferPool where the file takes its buffer from while it is open
+	 */
+	public OpenFile(int descriptorIndex, BufferPool bufferPool) {
+		_descriptorIndex = descriptorIndex;
+		_bufferPool = bufferPool;
+		_bufferLength = bufferPool.getBufferLength();
+		
+		reset();
+	}
+	
+	public boolean isOpen() {
+		return _handlesNumber > 0;
+	}
+	
+	/**
+	 * Adds a handle, taking a buffer from the pool for the first one.
+	 * @param row
+	 */
+	public void attach(OpenFileRow row) {
+		if (_handlesNumber == 0) {
+			_buffer = _bufferPool.acquire();
+		}
+		_handlesNumber++;
+	}
+	
+	/**
+	 * Removes a handle, giving the buffer and any held back buffers back to
+	 * the pool after the last one. Whatever was in the buffer must have been
+	 * saved and the held back blocks written.
+	 * @param row
+	 */
+	public void detach(OpenFileRow row) {
+		if (_owner == row) {
+			_owner = null;
+		}
+		if (--_handlesNumber > 0) {
+			return;
+		}
+		
+		_bufferPool.release(_buffer);
+		clearWriteBehind();
+		reset();
+	}
+	
+	public OpenFileRow getOwner() {
+		return _owner;
+	}
+	
+	/**
+	 * Hands the buffer to a row. The block in it is kept if it is the file
+	 * block the row is at, and dropped otherwise, so it must have been saved.
+	 * @param row
+	 * @param fileBlock
+	 * @return true if the buffer still holds the block
+	 */
+	public boolean setOwner(OpenFileRow row, int fileBlock) {
+		_owner = row;
+		if (holdsFileBlock(fileBlock)) {
+			return true;
+		}
+		
+		setCurrentBlock(NO_BLOCK_INDEX, NO_BLOCK_INDEX);
+		return false;
+	}
+	
+	public boolean hasNoBlock() {
+		return _currentBlockIndex == NO_BLOCK_INDEX;
+	}
+	
+	public boolean holdsFileBlock(int fileBlock) {
+		return _currentBlockIndex != NO_BLOCK_INDEX && _fileBlock == fileBlock;
+	}
+	
+	public int getDescriptorIndex() {
+		return _descriptorIndex;
+	}
+	
+	public byte[] getBuffer() {
+		return _buffer;
+	}
+	
+	public long getFileLength() {
+		return _fileLength;
+	}
+	
+	public void setFileLength(long fileLength) {
+		_fileLength = fileLength;
+	}
+	
+	public int getCurrentBlockIndex() {
+		return _currentBlockIndex;
+	}
+	
+	/**
+	 * @param fileBlock the block of the file the buffer now holds
+	 * @param blockIndex the ldisk block it belongs in
+	 */
+	public void setCurrentBlock(int fileBlock, int blockIndex) {
+		_fileBlock = fileBlock;
+		_currentBlockIndex = blockIndex;
+		_isDirty = false;
+	}
+	
+	public boolean isDirty() {
+		return _isDirty;
+	}
+	
+	public void markDirty() {
+		_isDirty = true;
+	}
+	
+	public void markClean() {
+		_isDirty = false;
+	}
+	
+	/**
+	 * Holds a copy of the full buffer back, with the block it belongs in,
+	 * instead of writing it out now. The copy is taken from the same pool as
+	 * the buffer, unless the block is held back already and its copy is
+	 * replaced. The buffer is clean afterwards.
+	 * @param capacity the number of blocks held back at most
+	 * @return true once capacity blocks are held back
+	 */
+	public boolean holdBackBuffer(int capacity) {
+		if (_writeBehind == null || _writeBehind.length < capacity) {
+			_writeBehind = new byte[capacity][];
+			_writeBehindBlocks = new int[capacity];
+		}
+		
+		int heldBack = findWriteBehind(_currentBlockIndex);
+		if (heldBack == NO_BLOCK_INDEX) {
+			heldBack = _writeBehindNumber++;
+			_writeBehind[heldBack] = _bufferPool.acquire();
+			_writeBehindBlocks[heldBack] = _currentBlockIndex;
+		}
+		System.arraycopy(_buffer, 0, _writeBehind[heldBack], 0, _bufferLength);
+		_isDirty = false;
+		return _writeBehindNumber >= capacity;
+	}
+	
+	/**
+	 * Puts the held back buffers in block order, so that blocks next to each
+	 * other on the ldisk are next to each other here too. No block is held
+	 * back twice, so the order they are written in does not matter.
+	 */
+	public void sortWriteBehind() {
+		for (int i = 1; i < _writeBehindNumber; i++) {
+			int blockIndex = _writeBehindBlocks[i];
+			byte[] block = _writeBehind[i];
+			int j = i;
+			while (j > 0 && _writeBehindBlocks[j - 1] > blockIndex) {
+				_writeBehindBlocks[j] = _writeBehindBlocks[j - 1];
+				_writeBehind[j] = _writeBehind[j - 1];
+				j--;
+			}
+			_writeBehindBlocks[j] = blockIndex;
+			_writeBehind[j] = block;
+		}
+	}
+	
+	public int getWriteBehindNumber() {
+		return _writeBehindNumber;
+	}
+	
+	/**
+	 * @param i from 0 to getWriteBehindNumber() - 1
+	 * @return the block the i-th held back buffer belongs in
+	 */
+	public int getWriteBehindBlock(int i) {
+		return _writeBehindBlocks[i];
+	}
+	
+	/**
+	 * @param i from 0 to getWriteBehindNumber() - 1
+	 * @return the i-th held back buffer
+	 */
+	public byte[] getWriteBehind(int i) {
+		return _writeBehind[i];
+	}
+	
+	/**
+	 * @return the held back buffers, the first getWriteBehindNumber() of them
+	 * in use
+	 */
+	public byte[][] getWriteBehind() {
+		return _writeBehind;
+	}
+	
+	/**
+	 * @param blockIndex
+	 * @return the position of the buffer held back for the block, or 
+	 * NO_BLOCK_INDEX if none is
+	 */
+	public int findWriteBehind(int blockIndex) {
+		for (int i = _writeBehindNumber - 1; i >= 0; i--) {
+			if (_writeBehindBlocks[i] == blockIndex) {
+				return i;
+			}
+		}
+		return NO_BLOCK_INDEX;
+	}
+	
+	/**
+	 * Gives the held back buffers back to the pool once they are written.
+	 */
+	public void clearWriteBehind() {
+		for (int i = 0; i < _writeBehindNumber; i++) {
+			_bufferPool.release(_writeBehind[i]);
+			_writeBehind[i] = null;
+		}
+		_writeBehindNumber = 0;
+	}
+	
+	private void reset() {
+		_buffer = null;
+		_fileLength = 0;
+		setCurrentBlock(NO_BLOCK_INDEX, NO_BLOCK_INDEX);
+		_owner = null;
+		_handlesNumber = 0;
+		_writeBehindNumber = 0;
+	}
+}
@@ -0,0 +1,97 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A channel over a handle of the open file table. Every read or write
+ * moves whole blocks between the buffer passed in and the buffer of the
+ * file. The position can not go past the end of the file, and files can
+ * not be truncated.
+ */
+public class OpenFileChannel implements SeekableByteChannel {
+	private FileSystemCore _fileSystem = null;
+	private int _index;
+	private boolean _isOpen;
+	
+	OpenFileChannel(FileSystemCore fileSystem, int index) {
+		_fileSystem = fileSystem;
+		_index = index;
+		_isOpen = true;
+	}
+	
+	public int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		
+		int count = _fileSystem.read(_index, dst);
+		if (count == FileSystemCore.ERROR_INDEX) {
+			throw new IOException("read failed");
+		}
+		return count == 0 ? -1 : count;
+	}
+	
+	public int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		int count = src.remaining();
+		if (!_fileSystem.write(_index, src)) {
+			throw new IOException("write failed");
+		}
+		return count;
+	}
+	
+	public long position() throws IOException {
+		ensureOpen();
+		return _fileSystem.getPosition(_index);
+	}
+	
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException();
+		} else if (!_fileSystem.lseek(_index, newPosition)) {
+			throw new IOException("position past the end of the file");
+		}
+		return this;
+	}
+	
+	public long size() throws IOException {
+		ensureOpen();
+		return _fileSystem.getLength(_index);
+	}
+	
+	public SeekableByteChannel truncate(long size) throws IOException {
+		ensureOpen();
+		if (size < 0) {
+			throw new IllegalArgumentException();
+		} else if (size < _fileSystem.getLength(_index)) {
+			throw new IOException("files can not be truncated");
+		}
+		return this;
+	}
+	
+	public boolean isOpen() {
+		return _isOpen;
+	}
+	
+	public void close() throws IOException {
+		if (!_isOpen) {
+			return;
+		}
+		
+		_isOpen = false;
+		if (!_fileSystem.close(_index)) {
+			throw new IOException("close failed");
+		}
+	}
+	
+	private void ensureOpen() throws ClosedChannelException {
+		if (!_isOpen) {
+			throw new ClosedChannelException();
+		}
+	}
+}
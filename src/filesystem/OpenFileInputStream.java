@@ -0,0 +1,85 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream reading a handle of the open file table from its position.
+ * Bulk reads copy whole blocks straight out of the buffer of the file.
+ */
+public class OpenFileInputStream extends InputStream {
+	private FileSystemCore _fileSystem = null;
+	private int _index;
+	private boolean _isOpen;
+	private byte[] _single = null;
+	
+	OpenFileInputStream(FileSystemCore fileSystem, int index) {
+		_fileSystem = fileSystem;
+		_index = index;
+		_isOpen = true;
+		_single = new byte[1];
+	}
+	
+	public int read() throws IOException {
+		int count = read(_single, 0, 1);
+		if (count <= 0) {
+			return -1;
+		}
+		return _single[0] & 0xff;
+	}
+	
+	public int read(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		} else if (len == 0) {
+			return 0;
+		}
+		
+		int count = _fileSystem.read(_index, b, off, len);
+		if (count == FileSystemCore.ERROR_INDEX) {
+			throw new IOException("read failed");
+		}
+		return count == 0 ? -1 : count;
+	}
+	
+	/**
+	 * Skips by moving the position, without reading what is skipped.
+	 */
+	public long skip(long n) throws IOException {
+		ensureOpen();
+		if (n <= 0) {
+			return 0;
+		}
+		
+		long position = _fileSystem.getPosition(_index);
+		long skipped = Math.min(n, _fileSystem.getLength(_index) - position);
+		if (!_fileSystem.lseek(_index, position + skipped)) {
+			throw new IOException("skip failed");
+		}
+		return skipped;
+	}
+	
+	public int available() throws IOException {
+		ensureOpen();
+		long available = _fileSystem.getLength(_index) - _fileSystem.getPosition(_index);
+		return (int) Math.min(available, Integer.MAX_VALUE);
+	}
+	
+	public void close() throws IOException {
+		if (!_isOpen) {
+			return;
+		}
+		
+		_isOpen = false;
+		if (!_fileSystem.close(_index)) {
+			throw new IOException("close failed");
+		}
+	}
+	
+	private void ensureOpen() throws IOException {
+		if (!_isOpen) {
+			throw new IOException("stream closed");
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream writing a handle of the open file table at its position. Bulk
+ * writes copy whole blocks straight into the buffer of the file, and
+ * flush() writes out the blocks held back for the file.
+ */
+public class OpenFileOutputStream extends OutputStream {
+	private FileSystemCore _fileSystem = null;
+	private int _index;
+	private boolean _isOpen;
+	private byte[] _single = null;
+	
+	OpenFileOutputStream(FileSystemCore fileSystem, int index) {
+		_fileSystem = fileSystem;
+		_index = index;
+		_isOpen = true;
+		_single = new byte[1];
+	}
+	
+	public void write(int b) throws IOException {
+		_single[0] = (byte) b;
+		write(_single, 0, 1);
+	}
+	
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		} else if (!_fileSystem.write(_index, b, off, len)) {
+			throw new IOException("write failed");
+		}
+	}
+	
+	public void flush() throws IOException {
+		ensureOpen();
+		if (!_fileSystem.flush(_index)) {
+			throw new IOException("flush failed");
+		}
+	}
+	
+	public void close() throws IOException {
+		if (!_isOpen) {
+			return;
+		}
+		
+		_isOpen = false;
+		if (!_fileSystem.close(_index)) {
+			throw new IOException("close failed");
+		}
+	}
+	
+	private void ensureOpen() throws IOException {
+		if (!_isOpen) {
+			throw new IOException("stream closed");
+		}
+	}
+}
@@ -1,34 +1,74 @@
 package filesystem;
 
+import java.nio.ByteBuffer;
+
+/**
+ * One handle of an open file: its own position and read-ahead window over
+ * the buffer and length it shares with the other handles of the file.
+ */
 public class OpenFileRow {
-	private byte[] _buffer = null; 
-	private int _currentPosition;
-	private int _descriptorIndex ;
-	private int _fileLength;
-	private int _currentBlockIndex;
+	private OpenFile _file = null;
+	private long _currentPosition;
 	private boolean _isStart;
 	
 	private int _bufferLength;
 	
+	private int _lastFileBlock;
+	private int _readAheadBlocks;
+	private int _readAheadEnd;
+	
 	private static final int NOT_FREE_INDEX = -1;
+	//no file block follows it, so the first block loaded is never sequential
+	private static final int NO_FILE_BLOCK = Integer.MIN_VALUE;
+	private static final int MIN_READ_AHEAD_BLOCKS = 4;
 	
-	public OpenFileRow(int bufferLength) {
+	OpenFileRow(int bufferLength) {
 		_bufferLength = bufferLength;
 		
 		freeOpenFileRow();
 	}
 	
+	/**
+	 * Resets the row in place and lets go of its file.
+	 */
 	public void freeOpenFileRow() {
-		_buffer = new byte[_bufferLength];
+		if (_file != null) {
+			_file.detach(this);
+			_file = null;
+		}
 		setCurrentPosition(0);
-		setFileLength(0);
-		setDescriptorIndex(NOT_FREE_INDEX);
-		setCurrentBlockIndex(NOT_FREE_INDEX);
 		_isStart = false;
+		
+		_lastFileBlock = NO_FILE_BLOCK;
+		_readAheadBlocks = 0;
+		_readAheadEnd = 0;
+	}
+		
+	/**
+	 * Opens a file in a free row, at position 0.
+	 * @param file
+	 */
+	void attach(OpenFile file) {
+		_file = file;
+		file.attach(this);
 	}
 	
 	public boolean isFree() {
-		return _descriptorIndex == NOT_FREE_INDEX;
+		return _file == null;
+	}
+	
+	public boolean ownsBuffer() {
+		return _file.getOwner() == this;
+	}
+	
+	/**
+	 * Takes the buffer of the file over from the handle that used it last,
+	 * which must have saved it. The block in it is kept if this row is at it.
+	 */
+	public void takeOverBuffer() {
+		if (_file.setOwner(this, (int) (_currentPosition / _bufferLength))) {
+			_isStart = true;
+		}
 	}
 	
 	public boolean isFull() {
@@ -37,123 +77,196 @@ public class OpenFileRow {
 	}
 	
 	public boolean isFileEnded() {
-		return _fileLength <= _currentPosition;
+		return getFileLength() <= _currentPosition;
 	}
 	
 	public boolean hasNoBlock() {
-		return _currentBlockIndex == NOT_FREE_INDEX;
-	}
-	
-	public byte[] getBuffer() {
-		return _buffer;
+		return _file.hasNoBlock();
 	}
 	
-	public int updateBuffer(byte[] buffer, int startPoint) {
-		int size = buffer.length - startPoint;
-		if (isFull() && !_isStart) {
-			return size;
+	/**
+	 * Notes that a file block was loaded into the buffer. Once a reader has
+	 * loaded two blocks in a row and keeps to the next block, the next 
+	 * read-ahead window opens halfway through the last one, twice as long as
+	 * the last one up to maxBlocks. No window reaches past the last block of
+	 * the file. A block out of sequence closes the window.
+	 * @param fileBlock
+	 * @param maxBlocks
+	 * @param fileBlocks the number of blocks of the file
+	 * @return the number of blocks to read ahead, ending before getReadAheadEnd()
+	 */
+	public int advanceReadAhead(int fileBlock, int maxBlocks, int fileBlocks) {
+		if (fileBlock == _lastFileBlock) {
+			return 0;
 		}
-		_isStart = false;
 		
-		int myBufferPosition = _currentPosition % _bufferLength;
-		int myBufferSpace = _bufferLength - myBufferPosition;
-		
-		if (size > myBufferSpace) {
-			_currentPosition += myBufferSpace;
-			size -= myBufferSpace;
-			
-			for (int i = startPoint; i < startPoint + myBufferSpace; i++) {
-				_buffer[myBufferPosition] = buffer[i];
-				myBufferPosition++;
-			}
-		} else {
-			_currentPosition += size;
-			size = 0;
-			
-			for (int i = startPoint; i < buffer.length; i++) {
-				_buffer[myBufferPosition] = buffer[i];
-				myBufferPosition++;
-			}
-		}
-				
-		if (_currentPosition > _fileLength) {
-			setFileLength(_currentPosition);
+		boolean isSequential = fileBlock == _lastFileBlock + 1;
+		_lastFileBlock = fileBlock;
+		if (!isSequential) {
+			_readAheadBlocks = 0;
+			_readAheadEnd = fileBlock + 1;
+			return 0;
+		} else if ((_readAheadEnd - fileBlock) * 2 > _readAheadBlocks) {
+			return 0;
 		}
 		
-		return size;
+		int start = Math.max(_readAheadEnd, fileBlock + 1);
+		_readAheadBlocks = Math.min(Math.max(_readAheadBlocks * 2, MIN_READ_AHEAD_BLOCKS), 
+									maxBlocks);
+		_readAheadEnd = Math.min(fileBlock + 1 + _readAheadBlocks, 
+								 Math.max(fileBlocks, fileBlock + 1));
+		return Math.max(_readAheadEnd - start, 0);
 	}
 	
-	public String getBufferPartition(int count) {
-		if (_currentPosition + count > _fileLength) {
-			return null;
-		}
-		
-		byte[] bufferPartition = null;
-		int size = count;
-		if (isFull() && !_isStart) {
-			return null;
+	public int getReadAheadEnd() {
+		return _readAheadEnd;
+	}
+	
+	public OpenFile getFile() {
+		return _file;
+	}
+	
+	public boolean isDirty() {
+		return _file.isDirty();
+	}
+	
+	public void markClean() {
+		_file.markClean();
+	}
+	
+	public byte[] getBuffer() {
+		return _file.getBuffer();
+	}
+	
+	/**
+	 * Copies as much of length bytes of src as fits into the rest of the
+	 * buffer.
+	 * @param src
+	 * @param offset
+	 * @param length
+	 * @return the number of bytes that did not fit
+	 */
+	public int updateBuffer(byte[] src, int offset, int length) {
+		int bufferPosition = (int) (_currentPosition % _bufferLength);
+		int size = advanceInBuffer(length);
+		if (size == 0) {
+			return length;
 		}
-		_isStart = false;
-		
-		int myBufferPosition = _currentPosition % _bufferLength;
-		int myBufferSpace = _bufferLength - myBufferPosition;
-		
-		if (size > myBufferSpace) {
-			_currentPosition += myBufferSpace;
-			bufferPartition = new byte[myBufferSpace];		
-		} else {
-			_currentPosition += size;
-			bufferPartition = new byte[size];
+				
+		System.arraycopy(src, offset, getBuffer(), bufferPosition, size);
+		updateFileLength();
+		return length - size;
+	}
+	
+	/**
+	 * Same as updateBuffer(src, offset, length) for the remaining bytes of
+	 * src, which are consumed as they are copied.
+	 * @param src
+	 * @return the number of bytes that did not fit
+	 */
+	public int updateBuffer(ByteBuffer src) {
+		int bufferPosition = (int) (_currentPosition % _bufferLength);
+		int size = advanceInBuffer(src.remaining());
+		if (size == 0) {
+			return src.remaining();
 		}
 		
+		src.get(getBuffer(), bufferPosition, size);
+		updateFileLength();
+		return src.remaining();
+	}
 		
-		for (int i = 0; i < bufferPartition.length; i++) {
-			bufferPartition[i] = _buffer[myBufferPosition];
-			myBufferPosition++;
-		}
-		String ret = new String(bufferPartition);
+	/**
+	 * Copies as much of length bytes as the rest of the buffer holds to dst.
+	 * @param dst
+	 * @param offset
+	 * @param length
+	 * @return the number of bytes copied, 0 once the buffer is used up
+	 */
+	public int readBuffer(byte[] dst, int offset, int length) {
+		int bufferPosition = (int) (_currentPosition % _bufferLength);
+		int size = advanceInBuffer(length);
 		
-		return ret;
+		System.arraycopy(getBuffer(), bufferPosition, dst, offset, size);
+		return size;
 	}
 	
-	public void setBuffer(byte[] buffer) {
-		this._buffer = buffer;
+	/**
+	 * Same as readBuffer(dst, offset, length), filling dst from its position.
+	 * @param dst
+	 * @param length
+	 * @return the number of bytes copied, 0 once the buffer is used up
+	 */
+	public int readBuffer(ByteBuffer dst, int length) {
+		int bufferPosition = (int) (_currentPosition % _bufferLength);
+		int size = advanceInBuffer(length);
+		
+		dst.put(getBuffer(), bufferPosition, size);
+		return size;
 	}
 	
-	public int getCurrentPosition() {
+	public long getCurrentPosition() {
 		return _currentPosition;
 	}
 	
-	public void setCurrentPosition(int currentPosition) {
+	public void setCurrentPosition(long currentPosition) {
 		this._currentPosition = currentPosition;
 	}
 	
 	public int getDescriptorIndex() {
-		return _descriptorIndex;
+		if (_file == null) {
+			return NOT_FREE_INDEX;
+		}
+		return _file.getDescriptorIndex();
 	}
 	
-	public void setDescriptorIndex(int descriptorIndex) {
-		this._descriptorIndex = descriptorIndex;
+	public long getFileLength() {
+		return _file.getFileLength();
 	}
 	
-	public int getFileLength() {
-		return _fileLength;
+	public void setFileLength(long fileLength) {
+		_file.setFileLength(fileLength);
 	}
 	
-	public void setFileLength(int fileLength) {
-		this._fileLength = fileLength;
-	}
-
 	public int getCurrentBlockIndex() {
-		return _currentBlockIndex;
+		return _file.getCurrentBlockIndex();
 	}
-
+	
+	/**
+	 * Notes that the block the row is at was loaded into the buffer.
+	 * @param currentBlockIndex
+	 */
 	public void setCurrentBlockIndex(int currentBlockIndex) {
 		_isStart = true;
-		this._currentBlockIndex = currentBlockIndex;
+		_file.setCurrentBlock((int) (_currentPosition / _bufferLength), currentBlockIndex);
 	}
 	
 	public int getBufferLength() {
 		return _bufferLength;
 	}
+	
+	/**
+	 * Moves the position over as much of size bytes as the rest of the
+	 * buffer holds.
+	 * @param size
+	 * @return the number of bytes moved over, 0 once the buffer is used up
+	 */
+	private int advanceInBuffer(int size) {
+		if (isFull() && !_isStart) {
+			return 0;
+		}
+		_isStart = false;
+		
+		int bufferSpace = _bufferLength - (int) (_currentPosition % _bufferLength);
+		size = Math.min(size, bufferSpace);
+		_currentPosition += size;
+		return size;
+	}
+	
+	private void updateFileLength() {
+		if (_currentPosition > getFileLength()) {
+			setFileLength(_currentPosition);
+		}
+		_file.markDirty();
+	}
 }
@@ -0,0 +1,253 @@
+package iosystem;
+
+import java.util.Arrays;
+
+import iosystem.IOSystemCore;
+import iosystem.LDiskOutOfBoundaryException;
+
+/**
+ * Bounded write-back cache in front of IOSystemCore. Frames are recycled
+ * with the CLOCK policy; a dirty frame only reaches the ldisk when it is 
+ * evicted or when flush() is called.
+ */
+public class BlockCache {
+	private static final int NO_FRAME = -1;
+	private static final int NO_BLOCK = -1;
+	
+	private IOSystemCore _iosystem = null;
+	
+	private int _capacity;
+	private int _blockLength;
+	
+	private byte[][] _frames = null;
+	private int[] _frameBlocks = null;
+	private boolean[] _isReferenced = null;
+	private boolean[] _isDirty = null;
+	private int[] _blockFrames = null;
+	
+	private int _clockHand;
+	
+	private long _hits;
+	private long _misses;
+	private long _evictions;
+	private long _writeBacks;
+	private long _prefetches;
+	private long _writeThroughs;
+	
+	public BlockCache(IOSystemCore iosystem, int capacity) {
+		_iosystem = iosystem;
+		_capacity = Math.max(1, capacity);
+		
+		invalidate();
+	}
+	
+	public void read_block(int blockIndex, byte[] dst, int offset) throws LDiskOutOfBoundaryException {
+		if (blockIndex < 0 || blockIndex >= _blockFrames.length) {
+			throw new LDiskOutOfBoundaryException();
+		} else if (offset < 0 || offset + _blockLength > dst.length) {
+			throw new LDiskOutOfBoundaryException();
+		}
+		
+		int frame = _blockFrames[blockIndex];
+		if (frame == NO_FRAME) {
+			_misses++;
+			frame = claimFrame(blockIndex);
+			_iosystem.read_block(blockIndex, _frames[frame], 0);
+		} else {
+			_hits++;
+		}
+		
+		_isReferenced[frame] = true;
+		System.arraycopy(_frames[frame], 0, dst, offset, _blockLength);
+	}
+	
+	public void write_block(int blockIndex, byte[] src, int offset) throws LDiskOutOfBoundaryException {
+		if (blockIndex < 0 || blockIndex >= _blockFrames.length) {
+			throw new LDiskOutOfBoundaryException();
+		} else if (offset < 0 || offset + _blockLength > src.length) {
+			throw new LDiskOutOfBoundaryException();
+		}
+		
+		int frame = _blockFrames[blockIndex];
+		if (frame == NO_FRAME) {
+			_misses++;
+			frame = claimFrame(blockIndex);
+		} else {
+			_hits++;
+		}
+		
+		System.arraycopy(src, offset, _frames[frame], 0, _blockLength);
+		_isReferenced[frame] = true;
+		_isDirty[frame] = true;
+	}
+	
+	/**
+	 * Writes a run of blocks straight through to the ldisk in one call,
+	 * without taking frames for them. Frames that already cache any of the
+	 * blocks are updated and left clean.
+	 * @param blockIndex the first block
+	 * @param count
+	 * @param blocks one buffer per block of the run
+	 * @param start the buffer of the first block
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	public void write_blocks(int blockIndex, int count, byte[][] blocks, int start) 
+			throws LDiskOutOfBoundaryException {
+		if (count < 0 || blockIndex < 0 || blockIndex + count > _blockFrames.length) {
+			throw new LDiskOutOfBoundaryException();
+		} else if (start < 0 || start + count > blocks.length) {
+			throw new LDiskOutOfBoundaryException();
+		}
+		
+		_iosystem.write_blocks(blockIndex, count, blocks, start);
+		_writeThroughs += count;
+		
+		for (int i = 0; i < count; i++) {
+			int frame = _blockFrames[blockIndex + i];
+			if (frame != NO_FRAME) {
+				System.arraycopy(blocks[start + i], 0, _frames[frame], 0, _blockLength);
+				_isDirty[frame] = false;
+			}
+		}
+	}
+	
+	/**
+	 * Reads a run of blocks into the cache ahead of use, the part of the run
+	 * not cached yet in one transfer where the ldisk allows. Prefetched
+	 * frames are not marked referenced, so the clock takes them first if
+	 * they go unused. At most a quarter of the frames are filled per call.
+	 * @param blockIndex
+	 * @param count
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	public void prefetch(int blockIndex, int count) throws LDiskOutOfBoundaryException {
+		if (blockIndex < 0 || count < 0 || blockIndex + count > _blockFrames.length) {
+			throw new LDiskOutOfBoundaryException();
+		}
+		
+		int end = blockIndex + Math.min(count, Math.max(1, _frames.length / 4));
+		while (blockIndex < end && _blockFrames[blockIndex] != NO_FRAME) {
+			blockIndex++;
+		}
+		if (blockIndex == end) {
+			return;
+		}
+		
+		_iosystem.preload(blockIndex, end);
+		for (int i = blockIndex; i < end; i++) {
+			if (_blockFrames[i] == NO_FRAME) {
+				int frame = claimFrame(i);
+				_iosystem.read_block(i, _frames[frame], 0);
+				_prefetches++;
+			}
+		}
+	}
+	
+	/**
+	 * Writes every dirty frame back to the ldisk. Frames stay cached.
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	public void flush() throws LDiskOutOfBoundaryException {
+		for (int frame = 0; frame < _frames.length; frame++) {
+			if (_isDirty[frame]) {
+				writeBack(frame);
+			}
+		}
+	}
+	
+	/**
+	 * Drops every frame without writing it back. Used when the ldisk under
+	 * the cache has been replaced, which may also change its geometry.
+	 */
+	public void invalidate() {
+		int blockLength = _iosystem.getBlockLength();
+		int blocksTotalNumber = _iosystem.getBlocksTotalNumber();
+		int capacity = Math.min(_capacity, blocksTotalNumber);
+		
+		if (_frames == null || _frames.length != capacity || _blockLength != blockLength) {
+			_blockLength = blockLength;
+			_frames = new byte[capacity][blockLength];
+			_frameBlocks = new int[capacity];
+			_isReferenced = new boolean[capacity];
+			_isDirty = new boolean[capacity];
+		}
+		if (_blockFrames == null || _blockFrames.length != blocksTotalNumber) {
+			_blockFrames = new int[blocksTotalNumber];
+		}
+		
+		Arrays.fill(_frameBlocks, NO_BLOCK);
+		Arrays.fill(_isReferenced, false);
+		Arrays.fill(_isDirty, false);
+		Arrays.fill(_blockFrames, NO_FRAME);
+		_clockHand = 0;
+	}
+	
+	public int getCapacity() {
+		return _frames.length;
+	}
+	
+	public long getHits() {
+		return _hits;
+	}
+	
+	public long getMisses() {
+		return _misses;
+	}
+	
+	public long getEvictions() {
+		return _evictions;
+	}
+	
+	public long getWriteBacks() {
+		return _writeBacks;
+	}
+	
+	public long getPrefetches() {
+		return _prefetches;
+	}
+	
+	public long getWriteThroughs() {
+		return _writeThroughs;
+	}
+	
+	public void resetStatistics() {
+		_hits = 0;
+		_misses = 0;
+		_evictions = 0;
+		_writeBacks = 0;
+		_prefetches = 0;
+		_writeThroughs = 0;
+	}
+	
+	private int claimFrame(int blockIndex) throws LDiskOutOfBoundaryException {
+		while (true) {
+			int frame = _clockHand;
+			_clockHand = (_clockHand + 1) % _frames.length;
+			
+			if (_frameBlocks[frame] != NO_BLOCK) {
+				if (_isReferenced[frame]) {
+					_isReferenced[frame] = false;
+					continue;
+				}
+				
+				if (_isDirty[frame]) {
+					writeBack(frame);
+				}
+				_blockFrames[_frameBlocks[frame]] = NO_FRAME;
+				_evictions++;
+			}
+			
+			_frameBlocks[frame] = blockIndex;
+			_blockFrames[blockIndex] = frame;
+			_isReferenced[frame] = false;
+			_isDirty[frame] = false;
+			return frame;
+		}
+	}
+	
+	private void writeBack(int frame) throws LDiskOutOfBoundaryException {
+		_iosystem.write_block(_frameBlocks[frame], _frames[frame], 0);
+		_isDirty[frame] = false;
+		_writeBacks++;
+	}
+}
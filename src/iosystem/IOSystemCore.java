@@ -1,14 +1,31 @@
 package iosystem;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
 import iosystem.LDiskOutOfBoundaryException;
 
 public class IOSystemCore {
 	private static IOSystemCore _iosystem = null;
 	
-	public static final int BLOCKS_TOTAL_NUMBER = 64;
-	public static final int BLOCK_LENGTH = 64;
+	public static final int DEFAULT_BLOCKS_TOTAL_NUMBER = 64;
+	public static final int DEFAULT_BLOCK_LENGTH = 64;
+	
+	private static final int MAX_TRANSFER_LENGTH = 1 << 20;
+	
+	private int _blocksTotalNumber;
+	private int _blockLength;
 	
-	private byte[][] _ldisk = null;
+	private LDisk _ldisk = null;
+	
+	private Path _image = null;
+	private BitSet _dirtyBlocks = null;
+	private ByteBuffer _transfer = null;
 	
 	public static IOSystemCore getObject() {
 		if (_iosystem == null) {
@@ -17,33 +34,309 @@ public class IOSystemCore {
 		return _iosystem;
 	}
 	
-	private IOSystemCore() {	
-		_ldisk = new byte[BLOCKS_TOTAL_NUMBER][BLOCK_LENGTH];
+	private IOSystemCore() {
+		format(DEFAULT_BLOCKS_TOTAL_NUMBER, DEFAULT_BLOCK_LENGTH);
+	}
+	
+	public int getBlocksTotalNumber() {
+		return _blocksTotalNumber;
+	}
+	
+	public int getBlockLength() {
+		return _blockLength;
 	}
 	
 	public byte[] read_block(int blockIndex) throws LDiskOutOfBoundaryException {
-		if (blockIndex < 0 || blockIndex >= BLOCKS_TOTAL_NUMBER) {
+		byte[] block = new byte[_blockLength];
+		read_block(blockIndex, block, 0);
+		
+		return block;
+	}
+	
+	public void read_block(int blockIndex, byte[] dst, int offset) throws LDiskOutOfBoundaryException {
+		if (blockIndex < 0 || blockIndex >= _blocksTotalNumber) {
+			throw new LDiskOutOfBoundaryException();
+		} else if (offset < 0 || offset + _blockLength > dst.length) {
 			throw new LDiskOutOfBoundaryException();
 		}
 		
-		byte[] block = new byte[BLOCK_LENGTH];
+		try {
+			_ldisk.read(blockIndex, dst, offset, _blockLength);
+		} catch (IOException e) {
+			throw new LDiskOutOfBoundaryException(e.getMessage());
+		}
+	}
 		
-		for (int i = 0; i < block.length; i++) {
-			block[i] = _ldisk[blockIndex][i];
+	public void read_block(int blockIndex, ByteBuffer dst) throws LDiskOutOfBoundaryException {
+		if (blockIndex < 0 || blockIndex >= _blocksTotalNumber) {
+			throw new LDiskOutOfBoundaryException();
+		} else if (dst.remaining() < _blockLength) {
+			throw new LDiskOutOfBoundaryException();
 		}
 		
-		return block;
+		try {
+			_ldisk.read(blockIndex, dst, _blockLength);
+		} catch (IOException e) {
+			throw new LDiskOutOfBoundaryException(e.getMessage());
+		}
 	}
 	
 	public void write_block(int blockIndex, byte[] block) throws LDiskOutOfBoundaryException {
-		if (blockIndex < 0 || blockIndex >= BLOCKS_TOTAL_NUMBER) {
+		if (blockIndex < 0 || blockIndex >= _blocksTotalNumber) {
 			throw new LDiskOutOfBoundaryException();
-		} else if (block.length > BLOCK_LENGTH) {
+		} else if (block.length > _blockLength) {
 			throw new LDiskOutOfBoundaryException();
 		}
 		
-		for (int i = 0; i < block.length; i++) {
-			_ldisk[blockIndex][i] = block[i];
+		try {
+			_ldisk.write(blockIndex, block, 0, block.length);
+		} catch (IOException e) {
+			throw new LDiskOutOfBoundaryException(e.getMessage());
+		}
+		_dirtyBlocks.set(blockIndex);
+	}
+	
+	public void write_block(int blockIndex, byte[] src, int offset) throws LDiskOutOfBoundaryException {
+		if (blockIndex < 0 || blockIndex >= _blocksTotalNumber) {
+			throw new LDiskOutOfBoundaryException();
+		} else if (offset < 0 || offset + _blockLength > src.length) {
+			throw new LDiskOutOfBoundaryException();
+		}
+		
+		try {
+			_ldisk.write(blockIndex, src, offset, _blockLength);
+		} catch (IOException e) {
+			throw new LDiskOutOfBoundaryException(e.getMessage());
+		}
+		_dirtyBlocks.set(blockIndex);
+	}
+	
+	/**
+	 * Writes count consecutive blocks in one call, in block order.
+	 * @param blockIndex the first block
+	 * @param count
+	 * @param blocks one buffer per block of the run
+	 * @param start the buffer of the first block
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	public void write_blocks(int blockIndex, int count, byte[][] blocks, int start) 
+			throws LDiskOutOfBoundaryException {
+		if (count < 0 || blockIndex < 0 || blockIndex + count > _blocksTotalNumber) {
+			throw new LDiskOutOfBoundaryException();
+		} else if (start < 0 || start + count > blocks.length) {
+			throw new LDiskOutOfBoundaryException();
+		}
+		
+		try {
+			_ldisk.write(blockIndex, count, blocks, start);
+		} catch (IOException e) {
+			throw new LDiskOutOfBoundaryException(e.getMessage());
+		}
+		_dirtyBlocks.set(blockIndex, blockIndex + count);
+	}
+	
+	public void write_block(int blockIndex, ByteBuffer src) throws LDiskOutOfBoundaryException {
+		if (blockIndex < 0 || blockIndex >= _blocksTotalNumber) {
+			throw new LDiskOutOfBoundaryException();
+		} else if (src.remaining() < _blockLength) {
+			throw new LDiskOutOfBoundaryException();
+		}
+		
+		try {
+			_ldisk.write(blockIndex, src, _blockLength);
+		} catch (IOException e) {
+			throw new LDiskOutOfBoundaryException(e.getMessage());
+		}
+		_dirtyBlocks.set(blockIndex);
+	}
+	
+	/**
+	 * Replaces the ldisk with an empty heap ldisk of the given geometry.
+	 * @param blocksTotalNumber
+	 * @param blockLength
+	 */
+	public void format(int blocksTotalNumber, int blockLength) {
+		setLDisk(new MemoryLDisk(blocksTotalNumber, blockLength));
+		setGeometry(blocksTotalNumber, blockLength, null);
+	}
+	
+	/**
+	 * Replaces the ldisk with a heap ldisk that pages blocks in from an image
+	 * file the first time they are read. The image becomes the one that
+	 * save() can update incrementally.
+	 * @param image
+	 * @param blocksTotalNumber
+	 * @param blockLength
+	 * @throws IOException
+	 */
+	public void load(Path image, int blocksTotalNumber, int blockLength) throws IOException {
+		setLDisk(new PagedLDisk(image, blocksTotalNumber, blockLength));
+		setGeometry(blocksTotalNumber, blockLength, image);
+	}
+		
+	/**
+	 * Reads the blocks of [start, end) in from the image now rather than on
+	 * first use.
+	 * @param start
+	 * @param end
+	 * @throws LDiskOutOfBoundaryException
+	 */
+	public void preload(int start, int end) throws LDiskOutOfBoundaryException {
+		if (start < 0 || end > _blocksTotalNumber || start > end) {
+			throw new LDiskOutOfBoundaryException();
+		}
+		
+		try {
+			_ldisk.preload(start, end);
+		} catch (IOException e) {
+			throw new LDiskOutOfBoundaryException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Replaces the ldisk with a memory mapping of the image file. The file
+	 * is created or extended to the full disk size when needed, and is
+	 * emptied first when isCreating is set.
+	 * @param image
+	 * @param blocksTotalNumber
+	 * @param blockLength
+	 * @param isCreating
+	 * @throws IOException
+	 */
+	public void map(Path image, int blocksTotalNumber, int blockLength, 
+			boolean isCreating) throws IOException {
+		setLDisk(new MappedLDisk(image, blocksTotalNumber, blockLength, isCreating));
+		setGeometry(blocksTotalNumber, blockLength, image);
+	}
+	
+	/**
+	 * Writes the ldisk to an image file. When the image is the one the ldisk
+	 * was loaded from or last saved to, only the blocks written since then
+	 * are written, in contiguous runs. A mapped image is only forced.
+	 * @param image
+	 * @throws IOException
+	 */
+	public void save(Path image) throws IOException {
+		boolean isSameImage = isSameImage(image);
+		
+		if (isSameImage && isMapped()) {
+			force();
+			_dirtyBlocks.clear();
+			return;
+		}
+		
+		boolean isIncremental = isSameImage && 
+				Files.size(image) == (long) _blocksTotalNumber * _blockLength;
+		
+		if (!isIncremental && _ldisk instanceof PagedLDisk && 
+			((PagedLDisk) _ldisk).isBackedBy(image)) {
+			_ldisk.preload(0, _blocksTotalNumber);
+		}
+		
+		FileChannel channel = null;
+		if (isIncremental) {
+			channel = FileChannel.open(image, StandardOpenOption.WRITE);
+		} else {
+			channel = FileChannel.open(image, 
+									   StandardOpenOption.CREATE,
+									   StandardOpenOption.WRITE,
+									   StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		
+		try {
+			if (isIncremental) {
+				int start = _dirtyBlocks.nextSetBit(0);
+				while (start >= 0) {
+					int end = _dirtyBlocks.nextClearBit(start);
+					writeRun(channel, start, end);
+					start = _dirtyBlocks.nextSetBit(end);
+				}
+			} else {
+				writeRun(channel, 0, _blocksTotalNumber);
+			}
+		} finally {
+			channel.close();
+		}
+		
+		_image = image;
+		_dirtyBlocks.clear();
+	}
+	
+	public Path getImage() {
+		return _image;
+	}
+	
+	public int getDirtyBlocksNumber() {
+		return _dirtyBlocks.cardinality();
+	}
+	
+	public boolean isMapped() {
+		return _ldisk instanceof MappedLDisk;
+	}
+	
+	/**
+	 * Flushes written blocks to the backing image, if there is one.
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		_ldisk.force();
+	}
+	
+	private void setLDisk(LDisk ldisk) {
+		if (_ldisk != null) {
+			try {
+				_ldisk.close();
+			} catch (IOException e) {
+			}
+		}
+		_ldisk = ldisk;
+	}
+	
+	private void setGeometry(int blocksTotalNumber, int blockLength, Path image) {
+		_blocksTotalNumber = blocksTotalNumber;
+		_blockLength = blockLength;
+		_image = image;
+		_dirtyBlocks = new BitSet(blocksTotalNumber);
+	}
+	
+	private boolean isSameImage(Path image) {
+		if (_image == null || !Files.exists(image)) {
+			return false;
+		}
+		
+		try {
+			return Files.isSameFile(_image, image);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	private ByteBuffer getTransferBuffer(int blockLength) {
+		int runBlocks = Math.max(1, MAX_TRANSFER_LENGTH / blockLength);
+		if (_transfer == null || _transfer.capacity() != runBlocks * blockLength) {
+			_transfer = ByteBuffer.allocate(runBlocks * blockLength);
+		}
+		return _transfer;
+	}
+	
+	private void writeRun(FileChannel channel, int start, int end) throws IOException {
+		ByteBuffer transfer = getTransferBuffer(_blockLength);
+		int runBlocks = transfer.capacity() / _blockLength;
+		
+		while (start < end) {
+			int runEnd = Math.min(start + runBlocks, end);
+			long position = (long) start * _blockLength;
+			
+			transfer.clear();
+			for (int blockIndex = start; blockIndex < runEnd; blockIndex++) {
+				_ldisk.read(blockIndex, transfer, _blockLength);
+			}
+			transfer.flip();
+			
+			while (transfer.hasRemaining()) {
+				position += channel.write(transfer, position);
+			}
+			start = runEnd;
 		}
 	}
 }
@@ -0,0 +1,25 @@
+package iosystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+interface LDisk {
+	public void read(int blockIndex, byte[] dst, int offset, int length) throws IOException;
+	
+	public void read(int blockIndex, ByteBuffer dst, int length) throws IOException;
+	
+	public void write(int blockIndex, byte[] src, int offset, int length) throws IOException;
+	
+	public void write(int blockIndex, ByteBuffer src, int length) throws IOException;
+	
+	/**
+	 * Writes count whole blocks from blockIndex on, one buffer per block.
+	 */
+	public void write(int blockIndex, int count, byte[][] blocks, int start) throws IOException;
+	
+	public void preload(int start, int end) throws IOException;
+	
+	public void force() throws IOException;
+	
+	public void close() throws IOException;
+}
@@ -0,0 +1,117 @@
+package iosystem;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * ldisk backed by a memory-mapped image file. Blocks are read from and
+ * written to the mapping directly, so the image is never copied onto the heap.
+ * Images larger than a single mapping are split into segments.
+ */
+class MappedLDisk implements LDisk {
+	private static final long MAX_SEGMENT_LENGTH = 1L << 30;
+	
+	private MappedByteBuffer[] _segments = null;
+	private ByteBuffer[] _views = null;
+	private int _blockLength;
+	private int _blocksPerSegment;
+	
+	MappedLDisk(Path image, int blocksTotalNumber, int blockLength,
+			boolean isCreating) throws IOException {
+		_blockLength = blockLength;
+		_blocksPerSegment = (int) Math.min(blocksTotalNumber, MAX_SEGMENT_LENGTH / blockLength);
+		
+		int segmentNumber = (blocksTotalNumber + _blocksPerSegment - 1) / _blocksPerSegment;
+		_segments = new MappedByteBuffer[segmentNumber];
+		_views = new ByteBuffer[segmentNumber];
+		
+		long size = (long) blocksTotalNumber * blockLength;
+		RandomAccessFile file = new RandomAccessFile(image.toFile(), "rw");
+		try {
+			if (isCreating) {
+				file.setLength(0);
+			}
+			if (file.length() < size) {
+				file.setLength(size);
+			}
+			
+			FileChannel channel = file.getChannel();
+			long segmentLength = (long) _blocksPerSegment * blockLength;
+			for (int i = 0; i < segmentNumber; i++) {
+				long start = i * segmentLength;
+				long length = Math.min(segmentLength, size - start);
+				_segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+				_views[i] = _segments[i].duplicate();
+			}
+		} finally {
+			file.close();
+		}
+	}
+	
+	public void read(int blockIndex, byte[] dst, int offset, int length) {
+		MappedByteBuffer segment = _segments[blockIndex / _blocksPerSegment];
+		segment.position(getSegmentPosition(blockIndex));
+		segment.get(dst, offset, length);
+	}
+	
+	public void read(int blockIndex, ByteBuffer dst, int length) {
+		ByteBuffer view = _views[blockIndex / _blocksPerSegment];
+		int start = getSegmentPosition(blockIndex);
+		view.limit(start + length);
+		view.position(start);
+		dst.put(view);
+	}
+	
+	public void write(int blockIndex, byte[] src, int offset, int length) {
+		MappedByteBuffer segment = _segments[blockIndex / _blocksPerSegment];
+		segment.position(getSegmentPosition(blockIndex));
+		segment.put(src, offset, length);
+	}
+	
+	public void write(int blockIndex, ByteBuffer src, int length) {
+		ByteBuffer view = _views[blockIndex / _blocksPerSegment];
+		int start = getSegmentPosition(blockIndex);
+		int limit = src.limit();
+		src.limit(src.position() + length);
+		view.limit(start + length);
+		view.position(start);
+		view.put(src);
+		src.limit(limit);
+	}
+	
+	/**
+	 * Positions the mapping once per segment the run falls in and writes the
+	 * blocks one after another from there.
+	 */
+	public void write(int blockIndex, int count, byte[][] blocks, int start) {
+		int i = 0;
+		while (i < count) {
+			MappedByteBuffer segment = _segments[(blockIndex + i) / _blocksPerSegment];
+			segment.position(getSegmentPosition(blockIndex + i));
+			do {
+				segment.put(blocks[start + i], 0, _blockLength);
+				i++;
+			} while (i < count && (blockIndex + i) % _blocksPerSegment != 0);
+		}
+	}
+	
+	public void preload(int start, int end) {
+	}
+	
+	public void force() {
+		for (int i = 0; i < _segments.length; i++) {
+			_segments[i].force();
+		}
+	}
+	
+	public void close() {
+	}
+	
+	private int getSegmentPosition(int blockIndex) {
+		return (blockIndex % _blocksPerSegment) * _blockLength;
+	}
+}
@@ -0,0 +1,65 @@
+package iosystem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Heap ldisk that allocates a block the first time it is written. A block
+ * never written reads as zeros, so a large empty volume takes no more heap
+ * than the blocks in use.
+ */
+class MemoryLDisk implements LDisk {
+	private byte[][] _blocks = null;
+	private byte[] _zeroBlock = null;
+	private int _blockLength;
+	
+	MemoryLDisk(int blocksTotalNumber, int blockLength) {
+		_blocks = new byte[blocksTotalNumber][];
+		_zeroBlock = new byte[blockLength];
+		_blockLength = blockLength;
+	}
+	
+	public void read(int blockIndex, byte[] dst, int offset, int length) {
+		System.arraycopy(getReadBlock(blockIndex), 0, dst, offset, length);
+	}
+	
+	public void read(int blockIndex, ByteBuffer dst, int length) {
+		dst.put(getReadBlock(blockIndex), 0, length);
+	}
+	
+	public void write(int blockIndex, byte[] src, int offset, int length) {
+		System.arraycopy(src, offset, getWriteBlock(blockIndex), 0, length);
+	}
+	
+	public void write(int blockIndex, ByteBuffer src, int length) {
+		src.get(getWriteBlock(blockIndex), 0, length);
+	}
+	
+	public void write(int blockIndex, int count, byte[][] blocks, int start) {
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(blocks[start + i], 0, getWriteBlock(blockIndex + i), 0, _blockLength);
+		}
+	}
+	
+	public void preload(int start, int end) {
+	}
+	
+	public void force() {
+	}
+	
+	public void close() {
+	}
+	
+	private byte[] getReadBlock(int blockIndex) {
+		byte[] block = _blocks[blockIndex];
+		return block == null ? _zeroBlock : block;
+	}
+	
+	private byte[] getWriteBlock(int blockIndex) {
+		byte[] block = _blocks[blockIndex];
+		if (block == null) {
+			block = new byte[_blockLength];
+			_blocks[blockIndex] = block;
+		}
+		return block;
+	}
+}
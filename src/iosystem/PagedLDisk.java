@@ -0,0 +1,151 @@
+package iosystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Heap ldisk that is paged in from an image file on demand. A block is read
+ * from the image the first time it is needed and stays on the heap after
+ * that, so mounting does not depend on the image size.
+ */
+class PagedLDisk implements LDisk {
+	private static final int MAX_TRANSFER_LENGTH = 1 << 20;
+	
+	private FileChannel _channel = null;
+	private Path _image = null;
+	private byte[][] _blocks = null;
+	private int _blockLength;
+	private ByteBuffer _transfer = null;
+	
+	PagedLDisk(Path image, int blocksTotalNumber, int blockLength) throws IOException {
+		_image = image;
+		_blockLength = blockLength;
+		_blocks = new byte[blocksTotalNumber][];
+		_channel = FileChannel.open(image, StandardOpenOption.READ);
+		
+		if (_channel.size() < (long) blocksTotalNumber * blockLength) {
+			_channel.close();
+			throw new IOException("image is shorter than its geometry");
+		}
+	}
+	
+	public void read(int blockIndex, byte[] dst, int offset, int length) throws IOException {
+		System.arraycopy(getBlock(blockIndex), 0, dst, offset, length);
+	}
+	
+	public void read(int blockIndex, ByteBuffer dst, int length) throws IOException {
+		dst.put(getBlock(blockIndex), 0, length);
+	}
+	
+	public void write(int blockIndex, byte[] src, int offset, int length) throws IOException {
+		byte[] block = _blocks[blockIndex];
+		if (block == null && length < _blockLength) {
+			block = getBlock(blockIndex);
+		} else if (block == null) {
+			block = new byte[_blockLength];
+			_blocks[blockIndex] = block;
+		}
+		System.arraycopy(src, offset, block, 0, length);
+	}
+	
+	public void write(int blockIndex, ByteBuffer src, int length) throws IOException {
+		byte[] block = _blocks[blockIndex];
+		if (block == null && length < _blockLength) {
+			block = getBlock(blockIndex);
+		} else if (block == null) {
+			block = new byte[_blockLength];
+			_blocks[blockIndex] = block;
+		}
+		src.get(block, 0, length);
+	}
+	
+	/**
+	 * Writes whole blocks, so none of them is paged in first.
+	 */
+	public void write(int blockIndex, int count, byte[][] blocks, int start) {
+		for (int i = 0; i < count; i++) {
+			byte[] block = _blocks[blockIndex + i];
+			if (block == null) {
+				block = new byte[_blockLength];
+				_blocks[blockIndex + i] = block;
+			}
+			System.arraycopy(blocks[start + i], 0, block, 0, _blockLength);
+		}
+	}
+	
+	/**
+	 * Pages in every block of [start, end) that is not loaded yet, reading
+	 * the image in large runs.
+	 */
+	public void preload(int start, int end) throws IOException {
+		ByteBuffer transfer = getTransferBuffer();
+		int runBlocks = transfer.capacity() / _blockLength;
+		
+		while (start < end) {
+			if (_blocks[start] != null) {
+				start++;
+				continue;
+			}
+			
+			int runEnd = start;
+			while (runEnd < end && runEnd - start < runBlocks && _blocks[runEnd] == null) {
+				runEnd++;
+			}
+			
+			transfer.clear();
+			transfer.limit((runEnd - start) * _blockLength);
+			readFully(transfer, (long) start * _blockLength);
+			transfer.flip();
+			
+			for (int blockIndex = start; blockIndex < runEnd; blockIndex++) {
+				byte[] block = new byte[_blockLength];
+				transfer.get(block);
+				_blocks[blockIndex] = block;
+			}
+			start = runEnd;
+		}
+	}
+	
+	public void force() {
+	}
+	
+	public void close() throws IOException {
+		_channel.close();
+	}
+	
+	boolean isBackedBy(Path image) throws IOException {
+		return Files.exists(image) && Files.isSameFile(_image, image);
+	}
+	
+	private ByteBuffer getTransferBuffer() {
+		if (_transfer == null) {
+			int runBlocks = Math.max(1, MAX_TRANSFER_LENGTH / _blockLength);
+			_transfer = ByteBuffer.allocate(runBlocks * _blockLength);
+		}
+		return _transfer;
+	}
+	
+	private byte[] getBlock(int blockIndex) throws IOException {
+		byte[] block = _blocks[blockIndex];
+		if (block == null) {
+			block = new byte[_blockLength];
+			readFully(ByteBuffer.wrap(block), (long) blockIndex * _blockLength);
+			_blocks[blockIndex] = block;
+		}
+		return block;
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int length = _channel.read(buffer, position);
+			if (length < 0) {
+				throw new IOException("image is shorter than its geometry");
+			}
+			position += length;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package filesystem;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks nested paths and listing a directory a page at a time. Run with
+ * the sources on the class path: java filesystem.DirectoryListingTest
+ */
+public class DirectoryListingTest {
+	public static void main(String[] args) {
+		testNestedPaths();
+		testListingCursors();
+		System.out.println("ok");
+	}
+	
+	private static void testNestedPaths() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 64, 24), "init");
+		check(fileSystem.mkdir("a"), "mkdir a");
+		check(fileSystem.mkdir("/a/b"), "mkdir a/b");
+		check(fileSystem.create("a/b/f"), "create a/b/f");
+		check(fileSystem.create("/a/f"), "create a/f");
+		check(!fileSystem.create("a/b/f"), "create a/b/f twice");
+		check(!fileSystem.create("x/f"), "create under a missing directory");
+		check(!fileSystem.create("a/f/g"), "create under a file");
+		check(!fileSystem.mkdir("a/b"), "mkdir a/b twice");
+		
+		int index = fileSystem.open("/a/b/f");
+		check(index != FileSystemCore.ERROR_INDEX, "open a/b/f");
+		check(fileSystem.write(index, "deep".getBytes(), 0, 4), "write a/b/f");
+		check(fileSystem.close(index), "close a/b/f");
+		index = fileSystem.open("a/f");
+		check(index != FileSystemCore.ERROR_INDEX, "open a/f");
+		check(fileSystem.getLength(index) == 0, "a/f is a different file");
+		check(fileSystem.close(index), "close a/f");
+		index = fileSystem.open("a/b/f");
+		byte[] dst = new byte[8];
+		check(fileSystem.read(index, dst, 0, dst.length) == 4, "read a/b/f");
+		check("deep".equals(new String(dst, 0, 4)), "content of a/b/f");
+		check(fileSystem.close(index), "close a/b/f");
+		check(fileSystem.open("a/b") == FileSystemCore.ERROR_INDEX, "open a directory");
+		
+		checkNames(fileSystem.directory(), "a");
+		checkNames(fileSystem.directory("a"), "b", "f");
+		checkNames(fileSystem.directory("/a/b"), "f");
+		check(fileSystem.directory("a/f") == null, "directory of a file");
+		check(fileSystem.directory("a/x") == null, "directory of a missing path");
+		
+		check(!fileSystem.destroy("a/b"), "destroy a directory that is not empty");
+		check(fileSystem.destroy("a/b/f"), "destroy a/b/f");
+		check(fileSystem.destroy("a/b"), "destroy an empty directory");
+		check(fileSystem.directory("a/b") == null, "directory of a destroyed directory");
+		checkNames(fileSystem.directory("a"), "f");
+	}
+	
+	/**
+	 * Pages through directories of several sizes with pages of several
+	 * sizes, and sees every entry exactly once.
+	 */
+	private static void testListingCursors() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 128, 48), "init");
+		check(fileSystem.mkdir("d"), "mkdir d");
+		check(fileSystem.mkdir("d/e"), "mkdir d/e");
+		check(fileSystem.create("f"), "create f");
+		
+		DirectoryEntry[] entries = new DirectoryEntry[3];
+		check(fileSystem.listDirectory("d/e", 0, entries) == 0, "list an empty directory");
+		check(fileSystem.listDirectory("f", 0, entries) == FileSystemCore.ERROR_INDEX,
+			  "list a file");
+		check(fileSystem.listDirectory("x", 0, entries) == FileSystemCore.ERROR_INDEX,
+			  "list a missing directory");
+		check(fileSystem.listDirectory("d", -1, entries) == FileSystemCore.ERROR_INDEX,
+			  "list from a negative cursor");
+		
+		Set<String> expected = new HashSet<String>();
+		expected.add("e");
+		for (int i = 0; i < 40; i++) {
+			String name = "g" + i;
+			check(fileSystem.create("d/" + name), "create d/" + name);
+			expected.add(name);
+			
+			if (i % 9 == 0) {
+				for (int pageLength = 1; pageLength <= 4; pageLength++) {
+					check(listAll(fileSystem, "d", pageLength).equals(expected),
+						  "listing of " + expected.size() + " entries in pages of " + pageLength);
+				}
+			}
+		}
+		
+		int cursor = 0;
+		int count;
+		while ((count = fileSystem.listDirectory("d", cursor, entries)) > 0) {
+			cursor = entries[count - 1].getNextCursor();
+		}
+		check(count == 0, "listing past the last entry");
+		check(fileSystem.listDirectory("d", cursor, entries) == 0, "listing past the last entry again");
+		
+		count = fileSystem.listDirectory("/", 0, new DirectoryEntry[8]);
+		check(count == 2, "root entries: " + count);
+	}
+	
+	private static Set<String> listAll(FileSystemCore fileSystem, String path, int pageLength) {
+		DirectoryEntry[] entries = new DirectoryEntry[pageLength];
+		Set<String> names = new HashSet<String>();
+		int cursor = 0;
+		while (true) {
+			int count = fileSystem.listDirectory(path, cursor, entries);
+			check(count != FileSystemCore.ERROR_INDEX, "list " + path);
+			if (count == 0) {
+				return names;
+			}
+			
+			for (int i = 0; i < count; i++) {
+				check(names.add(entries[i].getName()), "listed twice: " + entries[i].getName());
+				check(entries[i].isDirectory() == entries[i].getName().equals("e"),
+					  "directory flag of " + entries[i].getName());
+			}
+			check(entries[count - 1].getNextCursor() > cursor, "cursor moves on");
+			cursor = entries[count - 1].getNextCursor();
+		}
+	}
+	
+	private static void checkNames(String[] names, String... expected) {
+		check(names != null, "no directory");
+		String[] sorted = names.clone();
+		Arrays.sort(sorted);
+		check(Arrays.equals(sorted, expected), "names " + Arrays.toString(sorted));
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
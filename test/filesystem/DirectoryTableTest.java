@@ -0,0 +1,142 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks the hashed directory table: deleted slots, growing the table, and
+ * an insert that needs the table to grow when no block is free. Run with
+ * the sources on the class path: java filesystem.DirectoryTableTest
+ */
+public class DirectoryTableTest {
+	public static void main(String[] args) throws IOException {
+		testDeletedSlots();
+		testResize();
+		testResizeWithoutFreeBlocks();
+		System.out.println("ok");
+	}
+	
+	/**
+	 * Names probed past a deleted slot are still found, on disk as well as
+	 * through the dentry cache, and a deleted slot is taken again.
+	 */
+	private static void testDeletedSlots() throws IOException {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 64, 24), "init");
+		for (int i = 0; i < 5; i++) {
+			check(fileSystem.create("f" + i), "create f" + i);
+		}
+		check(fileSystem.destroy("f1") && fileSystem.destroy("f3"), "destroy");
+		check(!fileSystem.destroy("f1"), "destroy twice");
+		check(fileSystem.open("f1") == FileSystemCore.ERROR_INDEX, "open destroyed");
+		checkNames(fileSystem.directory(), "f0", "f2", "f4");
+		
+		reload(fileSystem);
+		checkNames(fileSystem.directory(), "f0", "f2", "f4");
+		for (String name : new String[] {"f0", "f2", "f4"}) {
+			int index = fileSystem.open(name);
+			check(index != FileSystemCore.ERROR_INDEX, "open " + name + " after reload");
+			check(fileSystem.close(index), "close " + name);
+		}
+		check(fileSystem.open("f3") == FileSystemCore.ERROR_INDEX, "open destroyed after reload");
+		
+		check(fileSystem.create("f3"), "create in a deleted slot");
+		check(!fileSystem.create("f3"), "create twice");
+		checkNames(fileSystem.directory(), "f0", "f2", "f3", "f4");
+	}
+	
+	/**
+	 * Fills the table past three quarters a few times over, with deletions
+	 * in between, and finds every name again after each growth.
+	 */
+	private static void testResize() throws IOException {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 256, 128), "init");
+		
+		int number = 100;
+		for (int i = 0; i < number; i++) {
+			check(fileSystem.create("n" + i), "create n" + i);
+			if (i % 3 == 2) {
+				check(fileSystem.destroy("n" + (i - 1)), "destroy n" + (i - 1));
+			}
+		}
+		
+		reload(fileSystem);
+		String[] names = fileSystem.directory();
+		check(names.length == number - number / 3, "entries after growing: " + names.length);
+		for (int i = 0; i < number; i++) {
+			boolean isDestroyed = i % 3 == 1 && i + 1 < number;
+			int index = fileSystem.open("n" + i);
+			check((index == FileSystemCore.ERROR_INDEX) == isDestroyed, "open n" + i);
+			if (index != FileSystemCore.ERROR_INDEX) {
+				check(fileSystem.close(index), "close n" + i);
+			}
+		}
+	}
+	
+	/**
+	 * An insert that needs the table to grow fails cleanly when no block is
+	 * free, and succeeds once blocks are freed.
+	 */
+	private static void testResizeWithoutFreeBlocks() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 64, 64), "init");
+		check(fileSystem.create("big"), "create big");
+		int index = fileSystem.open("big");
+		byte[] block = new byte[64];
+		while (fileSystem.write(index, block, 0, block.length)) {
+		}
+		check(fileSystem.close(index), "close big");
+		
+		int created = 0;
+		while (fileSystem.create("e" + created)) {
+			created++;
+		}
+		String failed = "e" + created;
+		check(created > 0, "no entry fits the first table");
+		check(fileSystem.open(failed) == FileSystemCore.ERROR_INDEX, "open the failed entry");
+		check(fileSystem.directory().length == created + 1, "entries after the failed insert");
+		for (int i = 0; i < created; i++) {
+			index = fileSystem.open("e" + i);
+			check(index != FileSystemCore.ERROR_INDEX, "open e" + i + " after the failed insert");
+			check(fileSystem.close(index), "close e" + i);
+		}
+		
+		check(fileSystem.destroy("big"), "destroy big");
+		check(fileSystem.create(failed), "create once blocks are free");
+		check(fileSystem.directory().length == created + 1, "entries after growing");
+		for (int i = 0; i <= created; i++) {
+			index = fileSystem.open("e" + i);
+			check(index != FileSystemCore.ERROR_INDEX, "open e" + i + " after growing");
+			check(fileSystem.close(index), "close e" + i);
+		}
+	}
+	
+	/**
+	 * Saves the disk and loads it again, so nothing is found through the
+	 * caches of the previous load.
+	 */
+	private static void reload(FileSystemCore fileSystem) throws IOException {
+		Path image = Files.createTempFile("directory", ".img");
+		try {
+			check(fileSystem.save(image.toString()), "save");
+			check(fileSystem.init(image.toString()), "load");
+		} finally {
+			Files.delete(image);
+		}
+	}
+	
+	private static void checkNames(String[] names, String... expected) {
+		String[] sorted = names.clone();
+		Arrays.sort(sorted);
+		check(Arrays.equals(sorted, expected), "names " + Arrays.toString(sorted));
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package filesystem;
+
+import java.util.Arrays;
+
+/**
+ * Checks a file long enough to reach its double-indirect block: reading it
+ * back whole and from the middle, counting its index blocks, and freeing
+ * them all on destroy. Run with the sources on the class path:
+ * java filesystem.IndirectBlockTest
+ */
+public class IndirectBlockTest {
+	private static final int BLOCK_LENGTH = 64;
+	private static final int POINTERS_PER_BLOCK = BLOCK_LENGTH / PackableMemory.BYTE_PER_INT;
+	private static final int FILE_BLOCKS = 40;
+	
+	public static void main(String[] args) {
+		testDoubleIndirect();
+		System.out.println("ok");
+	}
+	
+	private static void testDoubleIndirect() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, 64, 24), "init");
+		check(FILE_BLOCKS > DescriptorTable.DIRECT_POINTER_NUMBER + POINTERS_PER_BLOCK,
+			  "the file reaches the double-indirect block");
+		
+		check(fileSystem.create("f"), "create");
+		int index = fileSystem.open("f");
+		byte[] data = new byte[FILE_BLOCKS * BLOCK_LENGTH];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i / BLOCK_LENGTH + i);
+		}
+		//uneven pieces so writes straddle block boundaries
+		for (int done = 0; done < data.length; ) {
+			int length = Math.min(37, data.length - done);
+			check(fileSystem.write(index, data, done, length), "write at " + done);
+			done += length;
+		}
+		check(fileSystem.close(index), "close");
+		
+		int doubleIndirectBlocks = FILE_BLOCKS - DescriptorTable.DIRECT_POINTER_NUMBER -
+								   POINTERS_PER_BLOCK;
+		int indexBlocks = 2 + (doubleIndirectBlocks + POINTERS_PER_BLOCK - 1) / POINTERS_PER_BLOCK;
+		DirectoryEntry[] entries = new DirectoryEntry[1];
+		check(fileSystem.listDirectory("/", 0, entries) == 1, "list");
+		check(entries[0].getLength() == data.length, "listed length");
+		check(entries[0].getBlockNumber() == FILE_BLOCKS + indexBlocks,
+			  "listed blocks: " + entries[0].getBlockNumber());
+		
+		index = fileSystem.open("f");
+		byte[] dst = new byte[data.length];
+		check(fileSystem.read(index, dst, 0, dst.length) == dst.length, "read");
+		check(Arrays.equals(dst, data), "read back");
+		
+		for (int block : new int[] {2, 3, 18, 19, 34, 35, FILE_BLOCKS - 1}) {
+			long position = (long) block * BLOCK_LENGTH + 5;
+			byte[] piece = new byte[BLOCK_LENGTH];
+			check(fileSystem.lseek(index, position), "lseek to block " + block);
+			int count = fileSystem.read(index, piece, 0, piece.length);
+			int expected = (int) Math.min(piece.length, data.length - position);
+			check(count == expected, "read in block " + block);
+			check(Arrays.equals(Arrays.copyOf(piece, count),
+								Arrays.copyOfRange(data, (int) position, (int) position + count)),
+				  "read back in block " + block);
+		}
+		
+		byte[] patch = new byte[BLOCK_LENGTH];
+		Arrays.fill(patch, (byte) 0x5a);
+		check(fileSystem.lseek(index, 30L * BLOCK_LENGTH - 10), "lseek to patch");
+		check(fileSystem.write(index, patch, 0, patch.length), "patch across blocks");
+		System.arraycopy(patch, 0, data, 30 * BLOCK_LENGTH - 10, patch.length);
+		check(fileSystem.close(index), "close");
+		
+		index = fileSystem.open("f");
+		check(fileSystem.read(index, dst, 0, dst.length) == dst.length, "read after patch");
+		check(Arrays.equals(dst, data), "read back after patch");
+		check(fileSystem.close(index), "close");
+		
+		//a second file as long only fits once the first has freed its blocks
+		check(fileSystem.create("g"), "create g");
+		index = fileSystem.open("g");
+		check(!fileSystem.write(index, data, 0, data.length), "no room for two");
+		check(fileSystem.close(index), "close g");
+		check(fileSystem.destroy("g") && fileSystem.destroy("f"), "destroy");
+		check(fileSystem.create("g"), "create g again");
+		index = fileSystem.open("g");
+		check(fileSystem.write(index, data, 0, data.length), "write once blocks are free");
+		check(fileSystem.lseek(index, 0), "lseek");
+		check(fileSystem.read(index, dst, 0, dst.length) == dst.length, "read g");
+		check(Arrays.equals(dst, data), "read back g");
+		check(fileSystem.close(index), "close g");
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
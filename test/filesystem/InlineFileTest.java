@@ -0,0 +1,141 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks files kept in their descriptor: moving to a block once they grow
+ * past DescriptorTable.INLINE_LENGTH, and a descriptor taken back from a
+ * file with blocks starting inline again. Run with the sources on the class
+ * path: java filesystem.InlineFileTest
+ */
+public class InlineFileTest {
+	public static void main(String[] args) throws IOException {
+		testInlineToBlock();
+		testBlockToInline();
+		testInlineAfterReload();
+		System.out.println("ok");
+	}
+	
+	private static void testInlineToBlock() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 64, 24), "init");
+		check(fileSystem.create("f"), "create");
+		int index = fileSystem.open("f");
+		
+		byte[] data = pattern(DescriptorTable.INLINE_LENGTH + 30, 1);
+		check(fileSystem.write(index, data, 0, DescriptorTable.INLINE_LENGTH), "write inline");
+		check(fileSystem.flush(index), "flush inline");
+		check(getBlockNumber(fileSystem, "f") == 0, "an inline file has no block");
+		check(readAll(fileSystem, index).length == DescriptorTable.INLINE_LENGTH,
+			  "inline length");
+		
+		check(fileSystem.lseek(index, DescriptorTable.INLINE_LENGTH), "lseek to the end");
+		check(fileSystem.write(index, data, DescriptorTable.INLINE_LENGTH, 30), "write past inline");
+		check(fileSystem.flush(index), "flush");
+		check(getBlockNumber(fileSystem, "f") == 1, "a grown file has a block");
+		check(Arrays.equals(readAll(fileSystem, index), data), "inline bytes kept in the block");
+		check(fileSystem.close(index), "close");
+		
+		index = fileSystem.open("f");
+		check(Arrays.equals(readAll(fileSystem, index), data), "read back after reopening");
+		check(fileSystem.close(index), "close");
+	}
+	
+	/**
+	 * A destroyed file gives its blocks back, and the file created in its
+	 * place is inline until it grows.
+	 */
+	private static void testBlockToInline() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 64, 2), "init");
+		check(fileSystem.create("f"), "create");
+		int index = fileSystem.open("f");
+		byte[] data = pattern(3 * 64, 2);
+		check(fileSystem.write(index, data, 0, data.length), "write blocks");
+		check(fileSystem.close(index), "close");
+		check(getBlockNumber(fileSystem, "f") == 3, "blocks of the first file");
+		
+		check(fileSystem.destroy("f"), "destroy");
+		check(fileSystem.create("g"), "create in the freed descriptor");
+		check(!fileSystem.create("h"), "the only file descriptor is taken");
+		check(getBlockNumber(fileSystem, "g") == 0, "a new file has no block");
+		
+		index = fileSystem.open("g");
+		check(fileSystem.getLength(index) == 0, "a new file is empty");
+		byte[] small = pattern(DescriptorTable.INLINE_LENGTH, 3);
+		check(fileSystem.write(index, small, 0, small.length), "write inline");
+		check(fileSystem.close(index), "close");
+		check(getBlockNumber(fileSystem, "g") == 0, "the new file stays inline");
+		
+		index = fileSystem.open("g");
+		check(Arrays.equals(readAll(fileSystem, index), small), "read inline");
+		check(fileSystem.close(index), "close");
+	}
+	
+	private static void testInlineAfterReload() throws IOException {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 64, 24), "init");
+		check(fileSystem.create("f"), "create");
+		int index = fileSystem.open("f");
+		byte[] small = pattern(11, 4);
+		check(fileSystem.write(index, small, 0, small.length), "write inline");
+		check(fileSystem.close(index), "close");
+		
+		Path image = Files.createTempFile("inline", ".img");
+		try {
+			check(fileSystem.save(image.toString()), "save");
+			check(fileSystem.init(image.toString()), "load");
+		} finally {
+			Files.delete(image);
+		}
+		
+		check(getBlockNumber(fileSystem, "f") == 0, "inline after reload");
+		index = fileSystem.open("f");
+		check(Arrays.equals(readAll(fileSystem, index), small), "read inline after reload");
+		
+		byte[] grown = pattern(100, 5);
+		check(fileSystem.lseek(index, 0), "lseek");
+		check(fileSystem.write(index, grown, 0, grown.length), "write past inline");
+		check(fileSystem.close(index), "close");
+		check(getBlockNumber(fileSystem, "f") == 2, "blocks after growing");
+		index = fileSystem.open("f");
+		check(Arrays.equals(readAll(fileSystem, index), grown), "read after growing");
+		check(fileSystem.close(index), "close");
+	}
+	
+	private static int getBlockNumber(FileSystemCore fileSystem, String name) {
+		DirectoryEntry[] entries = new DirectoryEntry[1];
+		int cursor = 0;
+		while (fileSystem.listDirectory("/", cursor, entries) > 0) {
+			if (entries[0].getName().equals(name)) {
+				return entries[0].getBlockNumber();
+			}
+			cursor = entries[0].getNextCursor();
+		}
+		throw new IllegalStateException("not listed: " + name);
+	}
+	
+	private static byte[] readAll(FileSystemCore fileSystem, int index) {
+		byte[] dst = new byte[(int) fileSystem.getLength(index)];
+		check(fileSystem.lseek(index, 0), "lseek");
+		check(fileSystem.read(index, dst, 0, dst.length) == dst.length, "read");
+		return dst;
+	}
+	
+	private static byte[] pattern(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 7 + seed);
+		}
+		return data;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
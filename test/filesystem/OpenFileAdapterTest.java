@@ -0,0 +1,162 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Checks the channel and the streams over a handle of the open file table.
+ * Run with the sources on the class path: java filesystem.OpenFileAdapterTest
+ */
+public class OpenFileAdapterTest {
+	private static final int BLOCK_LENGTH = 64;
+	
+	public static void main(String[] args) throws IOException {
+		testChannel();
+		testStreams();
+		System.out.println("ok");
+	}
+	
+	private static void testChannel() throws IOException {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, 64, 24), "init");
+		check(fileSystem.create("f"), "create");
+		check(fileSystem.getChannel(5) == null, "channel over a handle not open");
+		
+		int index = fileSystem.open("f");
+		SeekableByteChannel channel = fileSystem.getChannel(index);
+		byte[] data = pattern(3 * BLOCK_LENGTH + 9, 1);
+		check(channel.write(ByteBuffer.wrap(data)) == data.length, "channel write");
+		check(channel.position() == data.length, "position after write");
+		check(channel.size() == data.length, "size after write");
+		
+		check(channel.position(10) == channel, "position returns the channel");
+		ByteBuffer dst = ByteBuffer.allocate(BLOCK_LENGTH + 3);
+		check(channel.read(dst) == dst.capacity(), "channel read");
+		check(Arrays.equals(dst.array(), Arrays.copyOfRange(data, 10, 10 + dst.capacity())),
+			  "channel read content");
+		
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		channel.position(0);
+		check(channel.read(direct) == data.length, "read into a direct buffer");
+		direct.flip();
+		byte[] all = new byte[data.length];
+		direct.get(all);
+		check(Arrays.equals(all, data), "direct buffer content");
+		check(channel.read(ByteBuffer.allocate(1)) == -1, "read at the end");
+		check(channel.read(ByteBuffer.allocate(0)) == 0, "read into a full buffer");
+		
+		check(channel.truncate(data.length) == channel, "truncate to the size");
+		check(channel.truncate(data.length + 10).size() == data.length, "truncate past the size");
+		try {
+			channel.truncate(5);
+			throw new IllegalStateException("truncate smaller did not fail");
+		} catch (IOException e) {
+		}
+		try {
+			channel.position(data.length + 1);
+			throw new IllegalStateException("position past the end did not fail");
+		} catch (IOException e) {
+		}
+		check(channel.position() == data.length, "failed moves keep the position");
+		
+		check(channel.isOpen(), "open");
+		channel.close();
+		check(!channel.isOpen(), "closed");
+		channel.close();
+		check(fileSystem.getPosition(index) == FileSystemCore.ERROR_INDEX, "closing closes the handle");
+		try {
+			channel.read(ByteBuffer.allocate(1));
+			throw new IllegalStateException("read on a closed channel did not fail");
+		} catch (ClosedChannelException e) {
+		}
+		try {
+			channel.write(ByteBuffer.allocate(1));
+			throw new IllegalStateException("write on a closed channel did not fail");
+		} catch (ClosedChannelException e) {
+		}
+		try {
+			channel.position();
+			throw new IllegalStateException("position on a closed channel did not fail");
+		} catch (ClosedChannelException e) {
+		}
+		try {
+			channel.size();
+			throw new IllegalStateException("size on a closed channel did not fail");
+		} catch (ClosedChannelException e) {
+		}
+	}
+	
+	private static void testStreams() throws IOException {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, 64, 24), "init");
+		check(fileSystem.create("f"), "create");
+		byte[] data = pattern(4 * BLOCK_LENGTH + 5, 2);
+		
+		OutputStream output = fileSystem.getOutputStream(fileSystem.open("f"));
+		output.write(data[0]);
+		output.write(data, 1, BLOCK_LENGTH);
+		output.write(data, BLOCK_LENGTH + 1, data.length - BLOCK_LENGTH - 1);
+		output.flush();
+		output.close();
+		output.close();
+		try {
+			output.write(1);
+			throw new IllegalStateException("write after close did not fail");
+		} catch (IOException e) {
+		}
+		try {
+			output.flush();
+			throw new IllegalStateException("flush after close did not fail");
+		} catch (IOException e) {
+		}
+		
+		int index = fileSystem.open("f");
+		byte[] all = new byte[data.length];
+		check(fileSystem.pread(index, 0, all) == all.length, "pread");
+		check(Arrays.equals(all, data), "stream written content");
+		InputStream input = fileSystem.getInputStream(index);
+		check(input.available() == data.length, "available");
+		check(input.read() == (data[0] & 0xff), "read one byte");
+		check(input.skip(9) == 9, "skip");
+		byte[] dst = new byte[BLOCK_LENGTH];
+		check(input.read(dst, 0, dst.length) == dst.length, "read");
+		check(Arrays.equals(dst, Arrays.copyOfRange(data, 10, 10 + dst.length)), "read content");
+		check(input.read(dst, 0, 0) == 0, "read nothing");
+		check(input.available() == data.length - 10 - dst.length, "available after read");
+		
+		check(input.skip(data.length) == data.length - 10 - dst.length, "skip to the end");
+		check(input.skip(1) == 0, "skip at the end");
+		check(input.available() == 0, "available at the end");
+		check(input.read() == -1, "read one byte at the end");
+		check(input.read(dst, 0, dst.length) == -1, "read at the end");
+		
+		check(fileSystem.lseek(index, data.length - 3), "lseek");
+		check(input.read(dst, 0, dst.length) == 3, "short read before the end");
+		input.close();
+		try {
+			input.read();
+			throw new IllegalStateException("read after close did not fail");
+		} catch (IOException e) {
+		}
+		check(fileSystem.getPosition(index) == FileSystemCore.ERROR_INDEX, "closing closes the handle");
+	}
+	
+	private static byte[] pattern(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 11 + seed);
+		}
+		return data;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package filesystem;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Checks that opening, writing, reading and closing a file again allocates
+ * nothing once the buffers are pooled, with blocks held back for writing or
+ * not. Run with the sources on the class path:
+ * java filesystem.OpenFileAllocationTest
+ */
+public class OpenFileAllocationTest {
+	private static final int BLOCK_LENGTH = 4096;
+	private static final int FILE_BLOCKS = 3;
+	private static final int WARM_UP_CYCLES = 2000;
+	private static final int CYCLES = 100;
+	
+	public static void main(String[] args) {
+		testCycleAllocatesNothing(FileSystemCore.DEFAULT_WRITE_BEHIND_BLOCKS);
+		testCycleAllocatesNothing(0);
+		System.out.println("ok");
+	}
+	
+	private static void testCycleAllocatesNothing(int writeBehindBlocks) {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, 256, 24), "init");
+		check(fileSystem.setWriteBehindBlocks(writeBehindBlocks), "write-behind");
+		check(fileSystem.create("f"), "create");
+		
+		byte[] src = new byte[FILE_BLOCKS * BLOCK_LENGTH];
+		byte[] dst = new byte[src.length];
+		for (int i = 0; i < src.length; i++) {
+			src[i] = (byte) i;
+		}
+		
+		for (int i = 0; i < WARM_UP_CYCLES; i++) {
+			cycle(fileSystem, src, dst);
+		}
+		
+		com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long overhead = threads.getThreadAllocatedBytes(thread);
+		long start = threads.getThreadAllocatedBytes(thread);
+		overhead = start - overhead;
+		for (int i = 0; i < CYCLES; i++) {
+			cycle(fileSystem, src, dst);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - start - overhead;
+		
+		check(allocated <= 0, "write-behind " + writeBehindBlocks + ": " + CYCLES +
+			  " cycles allocated " + allocated + " bytes");
+		check(Arrays.equals(src, dst), "read back");
+	}
+	
+	private static void cycle(FileSystemCore fileSystem, byte[] src, byte[] dst) {
+		int index = fileSystem.open("f");
+		check(index != FileSystemCore.ERROR_INDEX, "open");
+		check(fileSystem.write(index, src, 0, src.length), "write");
+		check(fileSystem.lseek(index, 0), "lseek");
+		check(fileSystem.read(index, dst, 0, dst.length) == dst.length, "read");
+		check(fileSystem.close(index), "close");
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package filesystem;
+
+import java.util.Arrays;
+
+/**
+ * Checks pread() and pwrite(): the position of the handle is left alone,
+ * writes only extend a file from its end, and both see the block in the
+ * buffer and the blocks held back for writing. Run with the sources on the
+ * class path: java filesystem.PositionalIOTest
+ */
+public class PositionalIOTest {
+	private static final int BLOCK_LENGTH = 64;
+	
+	public static void main(String[] args) {
+		testPositionKept();
+		testBounds();
+		testBufferedBlocks(FileSystemCore.DEFAULT_WRITE_BEHIND_BLOCKS);
+		testBufferedBlocks(0);
+		testInlineSpill();
+		System.out.println("ok");
+	}
+	
+	private static void testPositionKept() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, 64, 24), "init");
+		check(fileSystem.create("f"), "create");
+		int index = fileSystem.open("f");
+		byte[] data = pattern(5 * BLOCK_LENGTH, 1);
+		check(fileSystem.write(index, data, 0, data.length), "write");
+		check(fileSystem.lseek(index, 100), "lseek");
+		
+		byte[] dst = new byte[150];
+		check(fileSystem.pread(index, 70, dst) == dst.length, "pread");
+		check(Arrays.equals(dst, Arrays.copyOfRange(data, 70, 220)), "pread content");
+		check(fileSystem.getPosition(index) == 100, "pread keeps the position");
+		
+		byte[] src = pattern(90, 2);
+		check(fileSystem.pwrite(index, 200, src), "pwrite");
+		System.arraycopy(src, 0, data, 200, src.length);
+		check(fileSystem.getPosition(index) == 100, "pwrite keeps the position");
+		check(fileSystem.getLength(index) == data.length, "pwrite inside keeps the length");
+		
+		byte[] rest = new byte[data.length - 100];
+		check(fileSystem.read(index, rest, 0, rest.length) == rest.length, "read from the position");
+		check(Arrays.equals(rest, Arrays.copyOfRange(data, 100, data.length)), "read sees pwrite");
+		check(fileSystem.close(index), "close");
+	}
+	
+	private static void testBounds() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, 64, 24), "init");
+		check(fileSystem.create("f"), "create");
+		int index = fileSystem.open("f");
+		byte[] data = pattern(100, 3);
+		check(fileSystem.pwrite(index, 0, data), "pwrite an empty file");
+		check(fileSystem.getLength(index) == 100, "length after pwrite");
+		check(fileSystem.getPosition(index) == 0, "position after pwrite");
+		
+		check(!fileSystem.pwrite(index, 101, data), "pwrite past the end");
+		check(fileSystem.pwrite(index, 100, data), "pwrite at the end");
+		check(fileSystem.pwrite(index, 150, data), "pwrite across the end");
+		check(fileSystem.getLength(index) == 250, "length after extending");
+		check(!fileSystem.pwrite(index, -1, data), "pwrite at a negative offset");
+		
+		byte[] dst = new byte[80];
+		check(fileSystem.pread(index, 200, dst) == 50, "pread short at the end");
+		check(Arrays.equals(Arrays.copyOf(dst, 50), Arrays.copyOfRange(data, 50, 100)),
+			  "pread at the end");
+		check(fileSystem.pread(index, 250, dst) == 0, "pread at the end");
+		check(fileSystem.pread(index, 251, dst) == FileSystemCore.ERROR_INDEX, "pread past the end");
+		check(fileSystem.pread(index, -1, dst) == FileSystemCore.ERROR_INDEX, "pread at a negative offset");
+		check(fileSystem.pread(index, 0, null) == FileSystemCore.ERROR_INDEX, "pread into null");
+		check(!fileSystem.pwrite(index, 0, null), "pwrite from null");
+		check(fileSystem.close(index), "close");
+		check(fileSystem.pread(index, 0, dst) == FileSystemCore.ERROR_INDEX, "pread a closed handle");
+		check(!fileSystem.pwrite(index, 0, data), "pwrite a closed handle");
+	}
+	
+	/**
+	 * Mixes pwrite() and pread() with blocks another handle has written but
+	 * not flushed, in its buffer or held back for writing.
+	 */
+	private static void testBufferedBlocks(int writeBehindBlocks) {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, 64, 24), "init");
+		check(fileSystem.setWriteBehindBlocks(writeBehindBlocks), "write-behind");
+		check(fileSystem.create("f"), "create");
+		int writer = fileSystem.open("f");
+		int other = fileSystem.open("f");
+		
+		byte[] data = pattern(6 * BLOCK_LENGTH + 20, 4);
+		check(fileSystem.write(writer, data, 0, data.length), "write");
+		byte[] dst = new byte[data.length];
+		check(fileSystem.pread(other, 0, dst) == dst.length, "pread unflushed blocks");
+		check(Arrays.equals(dst, data), "pread sees unflushed blocks");
+		
+		byte[] src = pattern(3 * BLOCK_LENGTH, 5);
+		check(fileSystem.pwrite(other, BLOCK_LENGTH + 7, src), "pwrite over unflushed blocks");
+		System.arraycopy(src, 0, data, BLOCK_LENGTH + 7, src.length);
+		byte[] tail = pattern(30, 6);
+		check(fileSystem.pwrite(other, 6 * BLOCK_LENGTH + 10, tail), "pwrite the buffered block");
+		data = Arrays.copyOf(data, 6 * BLOCK_LENGTH + 40);
+		System.arraycopy(tail, 0, data, 6 * BLOCK_LENGTH + 10, tail.length);
+		
+		check(fileSystem.getLength(writer) == data.length, "length seen by the writer");
+		byte[] more = pattern(10, 7);
+		check(fileSystem.write(writer, more, 0, more.length), "write on after pwrite");
+		System.arraycopy(more, 0, data, 6 * BLOCK_LENGTH + 20, more.length);
+		
+		dst = new byte[data.length];
+		check(fileSystem.lseek(writer, 0), "lseek");
+		check(fileSystem.read(writer, dst, 0, dst.length) == dst.length, "read");
+		check(Arrays.equals(dst, data), "read sees pwrite");
+		check(fileSystem.close(writer) && fileSystem.close(other), "close");
+		
+		int index = fileSystem.open("f");
+		check(fileSystem.pread(index, 0, dst) == dst.length, "pread after reopening");
+		check(Arrays.equals(dst, data), "pread after reopening");
+		check(fileSystem.close(index), "close");
+	}
+	
+	private static void testInlineSpill() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, 64, 24), "init");
+		check(fileSystem.create("f"), "create");
+		int index = fileSystem.open("f");
+		byte[] small = pattern(12, 8);
+		check(fileSystem.pwrite(index, 0, small), "pwrite inline");
+		byte[] src = pattern(50, 9);
+		check(fileSystem.pwrite(index, 8, src), "pwrite past inline");
+		
+		byte[] data = new byte[58];
+		System.arraycopy(small, 0, data, 0, 8);
+		System.arraycopy(src, 0, data, 8, src.length);
+		byte[] dst = new byte[data.length];
+		check(fileSystem.pread(index, 0, dst) == dst.length, "pread");
+		check(Arrays.equals(dst, data), "pread after the spill");
+		check(fileSystem.close(index), "close");
+		
+		DirectoryEntry[] entries = new DirectoryEntry[1];
+		check(fileSystem.listDirectory("/", 0, entries) == 1, "list");
+		check(entries[0].getBlockNumber() == 1, "the spilled file has a block");
+		index = fileSystem.open("f");
+		check(fileSystem.read(index, dst, 0, dst.length) == dst.length, "read");
+		check(Arrays.equals(dst, data), "read after the spill");
+		check(fileSystem.close(index), "close");
+	}
+	
+	private static byte[] pattern(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 13 + seed);
+		}
+		return data;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import iosystem.IOSystemCore;
+
+/**
+ * Checks saving to the image a disk was loaded from, which writes only the
+ * blocks changed since, and loading or mapping the image again. Run with
+ * the sources on the class path: java filesystem.SaveRemountTest
+ */
+public class SaveRemountTest {
+	private static final int BLOCK_LENGTH = 64;
+	private static final int BLOCKS_TOTAL = 64;
+	
+	public static void main(String[] args) throws IOException {
+		Path image = Files.createTempFile("remount", ".img");
+		try {
+			testIncrementalSave(image);
+			testRemount(image);
+		} finally {
+			Files.delete(image);
+		}
+		testMountNewImage();
+		System.out.println("ok");
+	}
+	
+	private static void testIncrementalSave(Path image) throws IOException {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(BLOCK_LENGTH, BLOCKS_TOTAL, 24), "init");
+		byte[] a = pattern(2 * BLOCK_LENGTH, 1);
+		byte[] b = pattern(3 * BLOCK_LENGTH, 2);
+		writeFile(fileSystem, "a", a);
+		writeFile(fileSystem, "b", b);
+		check(fileSystem.save(image.toString()), "first save");
+		check(Files.size(image) == (long) BLOCKS_TOTAL * BLOCK_LENGTH, "image length");
+		
+		check(fileSystem.init(image.toString()), "load");
+		check(Arrays.equals(readFile(fileSystem, "a"), a), "a after load");
+		
+		//a changed byte in a clean block of the image outlives an incremental save
+		int position = indexOf(Files.readAllBytes(image), a, 0, BLOCK_LENGTH);
+		check(position >= 0, "first block of a in the image");
+		byte[] bytes = Files.readAllBytes(image);
+		bytes[position] ^= (byte) 0xff;
+		Files.write(image, bytes);
+		
+		IOSystemCore iosystem = IOSystemCore.getObject();
+		check(iosystem.getDirtyBlocksNumber() == 0, "nothing dirty after load");
+		int index = fileSystem.open("b");
+		check(fileSystem.lseek(index, BLOCK_LENGTH + 3), "lseek");
+		byte[] patch = pattern(10, 3);
+		check(fileSystem.write(index, patch, 0, patch.length), "patch b");
+		System.arraycopy(patch, 0, b, BLOCK_LENGTH + 3, patch.length);
+		check(fileSystem.close(index), "close");
+		
+		check(fileSystem.save(image.toString()), "incremental save");
+		check(iosystem.getDirtyBlocksNumber() == 0, "nothing dirty after save");
+		bytes = Files.readAllBytes(image);
+		check(bytes.length == BLOCKS_TOTAL * BLOCK_LENGTH, "image length after save");
+		check(bytes[position] == (byte) (a[0] ^ 0xff), "a clean block was written again");
+		check(indexOf(bytes, b, BLOCK_LENGTH, BLOCK_LENGTH) >= 0, "patched block of b in the image");
+		
+		bytes[position] = a[0];
+		Files.write(image, bytes);
+		check(fileSystem.init(image.toString()), "load again");
+		check(Arrays.equals(readFile(fileSystem, "a"), a), "a after the incremental save");
+		check(Arrays.equals(readFile(fileSystem, "b"), b), "b after the incremental save");
+	}
+	
+	/**
+	 * Maps the image saved above, changes it in place and loads it again
+	 * from the heap side.
+	 */
+	private static void testRemount(Path image) throws IOException {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.mount(image.toString()), "mount");
+		byte[] a = readFile(fileSystem, "a");
+		check(a.length == 2 * BLOCK_LENGTH, "a after mount");
+		
+		byte[] c = pattern(5 * BLOCK_LENGTH + 1, 4);
+		writeFile(fileSystem, "c", c);
+		check(fileSystem.mkdir("d"), "mkdir");
+		writeFile(fileSystem, "d/e", a);
+		check(fileSystem.save(image.toString()), "save the mapped image");
+		
+		check(fileSystem.init(image.toString()), "load");
+		check(Arrays.equals(readFile(fileSystem, "a"), a), "a after remount");
+		check(Arrays.equals(readFile(fileSystem, "c"), c), "c after remount");
+		check(Arrays.equals(readFile(fileSystem, "d/e"), a), "d/e after remount");
+		
+		check(fileSystem.mount(image.toString()), "mount again");
+		check(Arrays.equals(readFile(fileSystem, "c"), c), "c mapped again");
+		check(fileSystem.destroy("c"), "destroy c");
+		check(fileSystem.save(image.toString()), "save after destroy");
+		check(fileSystem.init(image.toString()), "load after destroy");
+		check(fileSystem.open("c") == FileSystemCore.ERROR_INDEX, "c stays destroyed");
+		check(Arrays.equals(readFile(fileSystem, "d/e"), a), "d/e after destroy");
+	}
+	
+	/**
+	 * A missing image is formatted with the geometry passed in, and keeps it
+	 * when mounted again without one.
+	 */
+	private static void testMountNewImage() throws IOException {
+		Path image = Files.createTempFile("mount", ".img");
+		Files.delete(image);
+		try {
+			FileSystemCore fileSystem = FileSystemCore.getObject();
+			check(fileSystem.mount(image.toString(), BLOCK_LENGTH, BLOCKS_TOTAL, 24), "mount new");
+			check(Files.size(image) == (long) BLOCKS_TOTAL * BLOCK_LENGTH, "new image length");
+			byte[] f = pattern(4 * BLOCK_LENGTH, 5);
+			writeFile(fileSystem, "f", f);
+			check(fileSystem.save(image.toString()), "save");
+			
+			check(fileSystem.mount(image.toString()), "mount without geometry");
+			check(Files.size(image) == (long) BLOCKS_TOTAL * BLOCK_LENGTH, "image keeps its length");
+			check(Arrays.equals(readFile(fileSystem, "f"), f), "f after mount");
+		} finally {
+			Files.deleteIfExists(image);
+		}
+	}
+	
+	private static void writeFile(FileSystemCore fileSystem, String path, byte[] data) {
+		check(fileSystem.create(path), "create " + path);
+		int index = fileSystem.open(path);
+		check(fileSystem.write(index, data, 0, data.length), "write " + path);
+		check(fileSystem.close(index), "close " + path);
+	}
+	
+	private static byte[] readFile(FileSystemCore fileSystem, String path) {
+		int index = fileSystem.open(path);
+		check(index != FileSystemCore.ERROR_INDEX, "open " + path);
+		byte[] data = new byte[(int) fileSystem.getLength(index)];
+		check(fileSystem.read(index, data, 0, data.length) == data.length, "read " + path);
+		check(fileSystem.close(index), "close " + path);
+		return data;
+	}
+	
+	/**
+	 * @return where length bytes of part from offset start a block of the
+	 * image, or -1
+	 */
+	private static int indexOf(byte[] image, byte[] part, int offset, int length) {
+		for (int position = 0; position + length <= image.length; position += BLOCK_LENGTH) {
+			if (Arrays.equals(Arrays.copyOfRange(image, position, position + length),
+							  Arrays.copyOfRange(part, offset, offset + length))) {
+				return position;
+			}
+		}
+		return -1;
+	}
+	
+	private static byte[] pattern(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 29 + seed * 101);
+		}
+		return data;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
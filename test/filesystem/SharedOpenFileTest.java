@@ -0,0 +1,46 @@
+package filesystem;
+
+import java.util.Arrays;
+
+/**
+ * Checks files opened by more than one handle. Run with the sources on
+ * the class path: java filesystem.SharedOpenFileTest
+ */
+public class SharedOpenFileTest {
+	public static void main(String[] args) {
+		testBlockHeldBackByOtherHandle();
+		System.out.println("ok");
+	}
+	
+	/**
+	 * One handle holds a full block back for writing while another loads
+	 * and rewrites part of it; nothing of either write may be lost.
+	 */
+	private static void testBlockHeldBackByOtherHandle() {
+		FileSystemCore fileSystem = FileSystemCore.getObject();
+		check(fileSystem.init(64, 64, 24), "init");
+		check(fileSystem.setWriteBehindBlocks(FileSystemCore.DEFAULT_WRITE_BEHIND_BLOCKS),
+			  "write-behind");
+		check(fileSystem.create("f"), "create");
+		
+		int first = fileSystem.open("f");
+		int second = fileSystem.open("f");
+		check(fileSystem.write(first, "A", 202), "first write");
+		check(fileSystem.write(second, "B", 70), "second write");
+		check(fileSystem.close(first) && fileSystem.close(second), "close");
+		
+		char[] expected = new char[202];
+		Arrays.fill(expected, 'A');
+		Arrays.fill(expected, 0, 70, 'B');
+		
+		int index = fileSystem.open("f");
+		check(new String(expected).equals(fileSystem.read(index, 202)), "read back");
+		check(fileSystem.close(index), "close again");
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}